@@ -1,7 +1,63 @@
 package java.wody.conf;
 
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 配置信息的容器，以 name/value 的形式保存各项配置
+ * 
+ * 取值时若配置项不存在或者无法解析，则返回调用者给出的默认值
+ * 
+ * 按类名解析的类按 classloader 缓存，所有使用同一个 classloader 的
+ * Configuration 共用一份缓存；找不到的类名也会被缓存
+ * 
+ * @author dongyu
+ */
 public class Configuration {
 
+	private Properties properties = new Properties();
+
+	private ClassLoader classLoader;
+	// classLoader 对应的类缓存，classLoader 改变时重新查找
+	private volatile ClassCache classes;
+
+	/**
+	 * Resolved classes of one classloader. The classes are only weakly
+	 * referenced so the cache does not keep the classloader alive.
+	 */
+	private static class ClassCache {
+		// 缓存的找不到的类名的上限，防止被任意的类名撑大
+		private static final int MAX_NEGATIVE = 1024;
+		// 找不到的类名对应这个没有引用对象的 WeakReference
+		private static final WeakReference<Class<?>> NOT_FOUND =
+			new WeakReference<Class<?>>(null);
+
+		private final ConcurrentHashMap<String, WeakReference<Class<?>>> map =
+			new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+		private final AtomicInteger negatives = new AtomicInteger();
+
+		void notFound(String name) {
+			if (negatives.get() < MAX_NEGATIVE
+					&& map.putIfAbsent(name, NOT_FOUND) == null) {
+				negatives.incrementAndGet();
+			}
+		}
+	}
+
+	private static final Map<ClassLoader, ClassCache> CLASS_CACHES =
+		new WeakHashMap<ClassLoader, ClassCache>();
+
+	public Configuration() {
+		classLoader = Thread.currentThread().getContextClassLoader();
+		if (classLoader == null) {
+			classLoader = Configuration.class.getClassLoader();
+		}
+	}
+
 	/**
 	 * @param args
 	 */
@@ -10,9 +66,162 @@ public class Configuration {
 
 	}
 
+	/** Get the value of the <code>name</code> property, or null. */
+	public String get(String name) {
+		return properties.getProperty(name);
+	}
+
+	/** Get the value of the <code>name</code> property, or the default. */
+	public String get(String name, String defaultValue) {
+		return properties.getProperty(name, defaultValue);
+	}
+
+	/** Set the <code>value</code> of the <code>name</code> property. */
+	public void set(String name, String value) {
+		properties.setProperty(name, value);
+	}
+
+	/**
+	 * Get the value of the <code>name</code> property as an <code>int</code>.
+	 * If no such property exists, or if it is not a valid <code>int</code>,
+	 * then <code>defaultValue</code> is returned.
+	 */
+	public int getInt(String name, int defaultValue) {
+		String valueString = get(name);
+		if (valueString == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(valueString.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/** Set the value of the <code>name</code> property to an <code>int</code>. */
+	public void setInt(String name, int value) {
+		set(name, Integer.toString(value));
+	}
+
+	/**
+	 * Get the value of the <code>name</code> property as a <code>long</code>.
+	 * If no such property exists, or if it is not a valid <code>long</code>,
+	 * then <code>defaultValue</code> is returned.
+	 */
+	public long getLong(String name, long defaultValue) {
+		String valueString = get(name);
+		if (valueString == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(valueString.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/** Set the value of the <code>name</code> property to a <code>long</code>. */
+	public void setLong(String name, long value) {
+		set(name, Long.toString(value));
+	}
+
+	/**
+	 * Get the value of the <code>name</code> property as a <code>boolean</code>.
+	 * If no such property exists, or if it is neither "true" nor "false",
+	 * then <code>defaultValue</code> is returned.
+	 */
+	public boolean getBoolean(String name, boolean defaultValue) {
+		String valueString = get(name);
+		if ("true".equals(valueString)) {
+			return true;
+		} else if ("false".equals(valueString)) {
+			return false;
+		}
+		return defaultValue;
+	}
+
+	/** Set the value of the <code>name</code> property to a <code>boolean</code>. */
+	public void setBoolean(String name, boolean value) {
+		set(name, Boolean.toString(value));
+	}
+
+	/**
+	 * Get the value of the <code>name</code> property as a <code>Class</code>.
+	 * If no such property is specified, then <code>defaultValue</code> is
+	 * returned.
+	 */
+	public Class<?> getClass(String name, Class<?> defaultValue) {
+		String valueString = get(name);
+		if (valueString == null) {
+			return defaultValue;
+		}
+		try {
+			return getClassByName(valueString.trim());
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Load a class by name through the configuration's classloader.
+	 * 
+	 * @throws ClassNotFoundException if the class is not found
+	 */
 	public Class<?> getClassByName(String clsName) throws ClassNotFoundException{
-		// TODO Auto-generated method stub
-		return null;
+		Class<?> c = getClassByNameOrNull(clsName);
+		if (c == null) {
+			throw new ClassNotFoundException("Class " + clsName + " not found");
+		}
+		return c;
+	}
+
+	/**
+	 * Load a class by name, or return null if it is not found. A class seen
+	 * before costs a single lookup in a concurrent map, whether it was found
+	 * or not.
+	 */
+	public Class<?> getClassByNameOrNull(String clsName) {
+		ClassCache cache = classCache();
+		WeakReference<Class<?>> ref = cache.map.get(clsName);
+		if (ref == ClassCache.NOT_FOUND) {
+			return null;
+		}
+		Class<?> c = ref == null ? null : ref.get();
+		if (c == null) {
+			try {
+				c = Class.forName(clsName, true, classLoader);
+			} catch (ClassNotFoundException e) {
+				cache.notFound(clsName);
+				return null;
+			}
+			cache.map.put(clsName, new WeakReference<Class<?>>(c));
+		}
+		return c;
+	}
+
+	private ClassCache classCache() {
+		ClassCache cache = classes;
+		if (cache == null) {
+			synchronized (CLASS_CACHES) {
+				cache = CLASS_CACHES.get(classLoader);
+				if (cache == null) {
+					cache = new ClassCache();
+					CLASS_CACHES.put(classLoader, cache);
+				}
+			}
+			classes = cache;
+		}
+		return cache;
+	}
+
+	/** The classloader that classes are loaded by name through. */
+	public ClassLoader getClassLoader() {
+		return classLoader;
+	}
+
+	public void setClassLoader(ClassLoader classLoader) {
+		this.classLoader = classLoader;
+		this.classes = null;
 	}
 
 }
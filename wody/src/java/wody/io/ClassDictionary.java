@@ -0,0 +1,193 @@
+package java.wody.io;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.wody.conf.Configuration;
+
+/**
+ * 一个连接上 {@link ObjectWritable} 所写类名的字典
+ *
+ * 一个类第一次出现时写出 0、它的 id 与类名，之后只写出 id + 1，都是 varint，
+ * 常见的类因此只占一个字节。两个方向各自编号：写的一方分配 id，
+ * 读的一方把类放入以 id 为下标的数组，之后的解析只是一次数组访问。
+ *
+ * 同一个连接上的 frame 由多个线程并发序列化，之后才排入发送队列，所以一个
+ * 类只有在包含其定义的 frame 已经排入队列之后才会被 {@link Output#commit}
+ * 为双方已知；在此之前序列化的 frame 会再带一次同样的定义，读的一方重复
+ * 定义同一个 id 是无害的。
+ */
+public class ClassDictionary {
+
+	/** Max number of classes one direction of a connection can define. */
+	public static final int MAX_CLASSES = 1 << 16;
+	// 字典满了之后的定义不占用 id，读的一方只解析类名
+	private static final int NO_ID = MAX_CLASSES;
+
+	// 双方都预先知道的类，id 固定
+	private static final Class<?>[] PREDEFINED = { Boolean.TYPE, Byte.TYPE,
+			Character.TYPE, Short.TYPE, Integer.TYPE, Long.TYPE, Float.TYPE,
+			Double.TYPE, Void.TYPE, String.class };
+
+	// 写的一方：分配了 id 的类，以及其中已经可以只写 id 的类
+	private final ConcurrentHashMap<Class<?>, Integer> assigned =
+		new ConcurrentHashMap<Class<?>, Integer>();
+	private final ConcurrentHashMap<Class<?>, Integer> committed =
+		new ConcurrentHashMap<Class<?>, Integer>();
+	private final AtomicInteger nextId = new AtomicInteger(PREDEFINED.length);
+
+	private final Function<Class<?>, Integer> newId =
+		new Function<Class<?>, Integer>() {
+			public Integer apply(Class<?> c) {
+				int id;
+				do {
+					id = nextId.get();
+					if (id >= MAX_CLASSES) {
+						return null; // 不建立映射
+					}
+				} while (!nextId.compareAndSet(id, id + 1));
+				return id;
+			}
+		};
+
+	// 读的一方，只由读这个连接的线程访问
+	private Class<?>[] classes = Arrays.copyOf(PREDEFINED, 64);
+
+	public ClassDictionary() {
+		for (int i = 0; i < PREDEFINED.length; i++) {
+			assigned.put(PREDEFINED[i], i);
+			committed.put(PREDEFINED[i], i);
+		}
+	}
+
+	/** A stream for one frame that writes classes through this dictionary. */
+	public Output newOutput(OutputStream out) {
+		return new Output(out);
+	}
+
+	/** A stream that reads the classes the peer wrote through its dictionary. */
+	public Input newInput(InputStream in) {
+		return new Input(in);
+	}
+
+	/** The id of the class, or {@link #NO_ID} if the dictionary is full. */
+	private int assign(Class<?> c) {
+		Integer id = assigned.get(c);
+		if (id == null) {
+			id = assigned.computeIfAbsent(c, newId);
+		}
+		return id == null ? NO_ID : id;
+	}
+
+	/**
+	 * The output of one frame. Classes it defines become known to other
+	 * frames only through {@link #commit}.
+	 */
+	public class Output extends DataOutputStream {
+
+		// 这个 frame 中已经定义过的类
+		private Map<Class<?>, Integer> defined;
+
+		private Output(OutputStream out) {
+			super(out);
+		}
+
+		public void writeClass(Class<?> c) throws IOException {
+			Integer id = committed.get(c);
+			if (id == null && defined != null) {
+				id = defined.get(c);
+			}
+			if (id != null) {
+				writeVInt(this, id + 1);
+				return;
+			}
+
+			int newId = assign(c);
+			writeVInt(this, 0);
+			writeVInt(this, newId);
+			UTF8.writeString(this, c.getName());
+			if (newId != NO_ID) {
+				if (defined == null) {
+					defined = new HashMap<Class<?>, Integer>();
+				}
+				defined.put(c, newId);
+			}
+		}
+
+		/**
+		 * Call once the frame is queued ahead of every frame serialized
+		 * from now on, so those can refer to its classes by id alone.
+		 */
+		public void commit() {
+			if (defined != null) {
+				committed.putAll(defined);
+				defined = null;
+			}
+		}
+	}
+
+	/** Reads classes by id, learning them from the peer's definitions. */
+	public class Input extends DataInputStream {
+
+		private Input(InputStream in) {
+			super(in);
+		}
+
+		public Class<?> readClass(Configuration conf) throws IOException {
+			int v = readVInt(this);
+			if (v != 0) {
+				Class<?> c = v > 0 && v <= classes.length ? classes[v - 1] : null;
+				if (c == null) {
+					throw new IOException("Undefined class id " + (v - 1));
+				}
+				return c;
+			}
+
+			int id = readVInt(this);
+			if (id < 0 || id > NO_ID) {
+				throw new IOException("Class id " + id + " is out of range");
+			}
+			Class<?> c = ObjectWritable.loadClass(UTF8.readString(this), conf);
+			if (id != NO_ID) {
+				if (id >= classes.length) {
+					classes = Arrays.copyOf(classes, Math.max(id + 1,
+							classes.length << 1));
+				}
+				classes[id] = c;
+			}
+			return c;
+		}
+	}
+
+	/** Writes a non-negative int in 7 bit groups, low group first. */
+	private static void writeVInt(DataOutput out, int v) throws IOException {
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	private static int readVInt(DataInput in) throws IOException {
+		int v = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = in.readByte();
+			v |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return v;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+}
@@ -4,6 +4,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import java.wody.conf.Configurable;
@@ -11,6 +12,10 @@ import java.wody.conf.Configuration;
 
 /** 一个多态的writable，会把实例和类名一起写出、读取
  *  处理数组、String、原始类型这几种没有Writable包装的类
+ *  
+ *  写到 {@link ClassDictionary.Output} 时类名由连接的字典编码成 id
+ *  
+ *  原始类型的数组只写出长度和按 {@link DataOutput} 字节序排列的元素
  */
 
 public class ObjectWritable implements Writable, Configurable {
@@ -63,6 +68,36 @@ public class ObjectWritable implements Writable, Configurable {
 
 	}
 
+	/** Stands in for a null of the declared class on the wire. */
+	private static class NullInstance implements Writable, Configurable {
+
+		private Class<?> declaredClass;
+		private Configuration conf;
+
+		public NullInstance() { // for readObject
+		}
+
+		NullInstance(Class<?> declaredClass) {
+			this.declaredClass = declaredClass;
+		}
+
+		public void write(DataOutput out) throws IOException {
+			writeClass(out, declaredClass);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			declaredClass = readClass(in, conf);
+		}
+
+		public Configuration getConf() {
+			return conf;
+		}
+
+		public void setConf(Configuration conf) {
+			this.conf = conf;
+		}
+	}
+
 	private static final Map<String, Class<?>> PRIMITIVE_NAMES = new HashMap<String, Class<?>>();
 	static {
 		PRIMITIVE_NAMES.put("boolean", Boolean.TYPE);
@@ -88,13 +123,20 @@ public class ObjectWritable implements Writable, Configurable {
 	public static void writeObject(DataOutput out, Object instance,
             Class declaredClass, Configuration conf) throws IOException {
 
-		// FIXME how if param is null
+		if (instance == null) {
+			// null 写成一个记录了声明类型的 NullInstance，读出时还原为 null
+			instance = new NullInstance(declaredClass);
+			declaredClass = Writable.class;
+		}
 
 		// 先写出类名
-		UTF8.writeString(out, declaredClass.getName());
+		writeClass(out, declaredClass);
 
 		// 判断是否为数组，若是，则递归调用本函数
-		if (declaredClass.isArray()) {
+		if (declaredClass.isArray()
+				&& declaredClass.getComponentType().isPrimitive()) {
+			writePrimitiveArray(out, instance, declaredClass.getComponentType());
+		} else if (declaredClass.isArray()) {
 			int length = Array.getLength(instance);
 			out.writeInt(length);
 			for (int i = 0; i < length; i++) {
@@ -130,6 +172,8 @@ public class ObjectWritable implements Writable, Configurable {
 		} else if (declaredClass.isEnum()) {
 			UTF8.writeString(out, ((Enum) instance).name());
 		} else if (Writable.class.isAssignableFrom(declaredClass)) {
+			// 声明的类型可能是接口，再写出实际的类
+			writeClass(out, instance.getClass());
 			((Writable) instance).write(out);
 		} else {
 			throw new IOException("Can't write: " + instance + " as " + declaredClass);
@@ -148,17 +192,7 @@ public class ObjectWritable implements Writable, Configurable {
 			Configuration conf) throws IOException {
 	
 		// 获取类名，通过反射等途径得到其对应的Class
-		String clsName = UTF8.readString(in);
-
-		Class<?> declaredClass = PRIMITIVE_NAMES.get(clsName);
-		if (declaredClass == null) {
-			// FIXME getClassByName is not implemented yet
-			try {
-				declaredClass = conf.getClassByName(clsName);
-			} catch (ClassNotFoundException e) {
-				throw new RuntimeException("readObject can't find class " + clsName, e);
-			}
-		}
+		Class<?> declaredClass = readClass(in, conf);
 		
 		// 判断是否为基本类型
 		Object instance;
@@ -184,9 +218,15 @@ public class ObjectWritable implements Writable, Configurable {
 			}else {
 		        throw new IllegalArgumentException("Not a primitive: "+declaredClass);
 		    }
+		} else if (declaredClass.isArray()
+				&& declaredClass.getComponentType().isPrimitive()) {
+			instance = readPrimitiveArray(in, declaredClass.getComponentType(),
+					conf);
 		} else if (declaredClass.isArray()){
 			//读取数组长度  ，然后获取其中各个元素
 			int len = in.readInt();
+			// 每个元素至少占一个字节
+			checkArrayLength(len, 1, declaredClass.getComponentType(), conf);
 			instance = Array.newInstance(declaredClass.getComponentType(), len);
 			for(int i = 0; i < len; i++){
 				Array.set(instance, i, readObject(in, null, conf));
@@ -200,19 +240,15 @@ public class ObjectWritable implements Writable, Configurable {
 
 			// 由于在write中，对于Writable类型先写了instance.getClass.getName
 			// 因此，先读取这个classname，然后通过反射获得对应的类
-			String str = null;
-			Class instanceClass;
-			try {
-				str = UTF8.readString(in);
-				instanceClass = conf.getClassByName(str);
-			} catch (ClassNotFoundException e) {
-				throw new RuntimeException(
-						"readObject can't find class " + str, e);
-			}
+			Class instanceClass = readClass(in, conf);
 			
 			Writable writable = WritableFactories.newInstance(instanceClass, conf);
 			writable.readFields(in);
 			instance = writable;
+			if (instanceClass == NullInstance.class) {
+				declaredClass = ((NullInstance) writable).declaredClass;
+				instance = null;
+			}
 		} 
 
 		if (objectWritable != null) {                 // store values
@@ -222,6 +258,171 @@ public class ObjectWritable implements Writable, Configurable {
 		return instance;
 	}
 
+	// 原始类型数组每次批量转换的最大字节数
+	private static final int ARRAY_CHUNK = 64 * 1024;
+
+	/**
+	 * Max number of bytes an array read by {@link #readObject} may take on
+	 * the wire. The length comes from the peer, so a corrupt one must not
+	 * make us allocate whatever it says.
+	 */
+	public static final String MAX_ARRAY_BYTES_NAME = "io.objectwritable.array.max.bytes";
+	public static final int DEFAULT_MAX_ARRAY_BYTES = 64 * 1024 * 1024;
+
+	private static void checkArrayLength(int length, int elementSize,
+			Class<?> componentType, Configuration conf) throws IOException {
+		if (length < 0) {
+			throw new IOException("Negative array length " + length);
+		}
+		long max = conf == null ? DEFAULT_MAX_ARRAY_BYTES : conf.getLong(
+				MAX_ARRAY_BYTES_NAME, DEFAULT_MAX_ARRAY_BYTES);
+		if ((long) length * elementSize > max) {
+			throw new IOException("Array of " + length + " " + componentType
+					+ " is larger than " + MAX_ARRAY_BYTES_NAME + " = " + max);
+		}
+	}
+
+	/**
+	 * Writes the length and then the elements of a primitive array. The
+	 * elements are copied through a {@link ByteBuffer} view a chunk at a
+	 * time, so nothing is boxed.
+	 */
+	private static void writePrimitiveArray(DataOutput out, Object array,
+			Class<?> componentType) throws IOException {
+		int length = Array.getLength(array);
+		out.writeInt(length);
+		if (componentType == Byte.TYPE) {
+			out.write((byte[]) array);
+			return;
+		} else if (componentType == Boolean.TYPE) {
+			for (boolean value : (boolean[]) array) {
+				out.writeBoolean(value);
+			}
+			return;
+		}
+
+		int size = elementSize(componentType);
+		int perChunk = ARRAY_CHUNK / size;
+		ByteBuffer buffer = ByteBuffer.allocate(Math.min(length, perChunk) * size);
+		for (int off = 0; off < length; off += perChunk) {
+			int n = Math.min(perChunk, length - off);
+			buffer.clear();
+			if (componentType == Integer.TYPE) {
+				buffer.asIntBuffer().put((int[]) array, off, n);
+			} else if (componentType == Long.TYPE) {
+				buffer.asLongBuffer().put((long[]) array, off, n);
+			} else if (componentType == Double.TYPE) {
+				buffer.asDoubleBuffer().put((double[]) array, off, n);
+			} else if (componentType == Float.TYPE) {
+				buffer.asFloatBuffer().put((float[]) array, off, n);
+			} else if (componentType == Short.TYPE) {
+				buffer.asShortBuffer().put((short[]) array, off, n);
+			} else {
+				buffer.asCharBuffer().put((char[]) array, off, n);
+			}
+			out.write(buffer.array(), 0, n * size);
+		}
+	}
+
+	/**
+	 * Reads a primitive array written by {@link #writePrimitiveArray}. The
+	 * array grows as its chunks arrive, so a length beyond the data that
+	 * follows fails with an EOFException before the whole array is
+	 * allocated.
+	 */
+	private static Object readPrimitiveArray(DataInput in,
+			Class<?> componentType, Configuration conf) throws IOException {
+		int length = in.readInt();
+		int size = componentType == Byte.TYPE || componentType == Boolean.TYPE ? 1
+				: elementSize(componentType);
+		checkArrayLength(length, size, componentType, conf);
+
+		int perChunk = ARRAY_CHUNK / size;
+		Object array = Array.newInstance(componentType, Math.min(length, perChunk));
+		ByteBuffer buffer = size == 1 ? null : ByteBuffer.allocate(Math.min(
+				length, perChunk) * size);
+		for (int off = 0; off < length; off += perChunk) {
+			int n = Math.min(perChunk, length - off);
+			int capacity = Array.getLength(array);
+			if (off + n > capacity) {
+				Object grown = Array.newInstance(componentType, (int) Math.min(
+						length, Math.max(off + n, 2L * capacity)));
+				System.arraycopy(array, 0, grown, 0, off);
+				array = grown;
+			}
+
+			if (componentType == Byte.TYPE) {
+				in.readFully((byte[]) array, off, n);
+				continue;
+			} else if (componentType == Boolean.TYPE) {
+				boolean[] values = (boolean[]) array;
+				for (int i = off; i < off + n; i++) {
+					values[i] = in.readBoolean();
+				}
+				continue;
+			}
+
+			in.readFully(buffer.array(), 0, n * size);
+			buffer.clear();
+			if (componentType == Integer.TYPE) {
+				buffer.asIntBuffer().get((int[]) array, off, n);
+			} else if (componentType == Long.TYPE) {
+				buffer.asLongBuffer().get((long[]) array, off, n);
+			} else if (componentType == Double.TYPE) {
+				buffer.asDoubleBuffer().get((double[]) array, off, n);
+			} else if (componentType == Float.TYPE) {
+				buffer.asFloatBuffer().get((float[]) array, off, n);
+			} else if (componentType == Short.TYPE) {
+				buffer.asShortBuffer().get((short[]) array, off, n);
+			} else {
+				buffer.asCharBuffer().get((char[]) array, off, n);
+			}
+		}
+		return array;
+	}
+
+	/** Bytes per element of the primitive types without a special case. */
+	private static int elementSize(Class<?> componentType) {
+		if (componentType == Long.TYPE || componentType == Double.TYPE) {
+			return 8;
+		} else if (componentType == Integer.TYPE || componentType == Float.TYPE) {
+			return 4;
+		} else if (componentType == Short.TYPE || componentType == Character.TYPE) {
+			return 2;
+		}
+		throw new IllegalArgumentException("Not a primitive: " + componentType);
+	}
+
+	private static void writeClass(DataOutput out, Class<?> c)
+			throws IOException {
+		if (out instanceof ClassDictionary.Output) {
+			((ClassDictionary.Output) out).writeClass(c);
+		} else {
+			UTF8.writeString(out, c.getName());
+		}
+	}
+
+	private static Class<?> readClass(DataInput in, Configuration conf)
+			throws IOException {
+		if (in instanceof ClassDictionary.Input) {
+			return ((ClassDictionary.Input) in).readClass(conf);
+		}
+		return loadClass(UTF8.readString(in), conf);
+	}
+
+	/** Resolves a class name as written by {@link #writeObject}. */
+	static Class<?> loadClass(String name, Configuration conf) {
+		Class<?> c = PRIMITIVE_NAMES.get(name);
+		if (c == null) {
+			try {
+				c = conf.getClassByName(name);
+			} catch (ClassNotFoundException e) {
+				throw new RuntimeException("readObject can't find class " + name, e);
+			}
+		}
+		return c;
+	}
+
 	public Class getDeclaredClass() {
 		return declaredClass;
 	}
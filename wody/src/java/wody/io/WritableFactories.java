@@ -18,26 +18,29 @@
 
 package java.wody.io;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.wody.conf.Configurable;
 import java.wody.conf.Configuration;
 import java.wody.util.ReflectionUtils;
 
 /** Factories for non-public writables.  Defining a factory permits {@link
- * ObjectWritable} to be able to construct instances of non-public classes. */
+ * ObjectWritable} to be able to construct instances of non-public classes.
+ *
+ * <p>The registry is read on every deserialized object, so lookups take no
+ * lock; factories may still be set at any time. */
 public class WritableFactories {
-  private static final HashMap<Class, WritableFactory> CLASS_TO_FACTORY =
-    new HashMap<Class, WritableFactory>();
+  private static final ConcurrentHashMap<Class, WritableFactory> CLASS_TO_FACTORY =
+    new ConcurrentHashMap<Class, WritableFactory>();
 
   private WritableFactories() {}                  // singleton
 
   /** Define a factory for a class. */
-  public static synchronized void setFactory(Class c, WritableFactory factory) {
+  public static void setFactory(Class c, WritableFactory factory) {
     CLASS_TO_FACTORY.put(c, factory);
   }
 
-  /** Define a factory for a class. */
-  public static synchronized WritableFactory getFactory(Class c) {
+  /** Return the factory defined for a class, or null. */
+  public static WritableFactory getFactory(Class c) {
     return CLASS_TO_FACTORY.get(c);
   }
 
@@ -0,0 +1,34 @@
+package java.wody.ipc;
+
+/**
+ * Server 中 reader 与 handler 之间的 call 队列
+ * 
+ * 实现类由 {@link Server#CALLQUEUE_IMPL_NAME} 指定，需要提供一个
+ * <code>(int capacity, Configuration conf)</code> 的 public 构造函数
+ * 
+ * @see FifoCallQueue
+ * @see FairCallQueue
+ */
+public interface CallQueue<E extends Schedulable> {
+
+	/**
+	 * Adds a call, waiting for room if the queue is full.
+	 */
+	public void put(E call) throws InterruptedException;
+
+	/**
+	 * Adds a call if there is room for it.
+	 * 
+	 * @return false if the queue is full
+	 */
+	public boolean offer(E call);
+
+	/**
+	 * Removes the next call to run, waiting until there is one.
+	 */
+	public E take() throws InterruptedException;
+
+	/** The number of calls in the queue. */
+	public int size();
+
+}
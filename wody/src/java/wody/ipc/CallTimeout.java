@@ -0,0 +1,21 @@
+package java.wody.ipc;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 为协议中的某个方法指定 call 的超时时间，覆盖
+ * {@link Client#CALL_TIMEOUT_NAME} 中配置的默认值
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CallTimeout {
+
+	/** Timeout of the call in milliseconds, 0 for no timeout. */
+	long value();
+
+}
@@ -2,9 +2,11 @@ package java.wody.ipc;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.io.FilterInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.ConnectException;
@@ -12,34 +14,188 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.rmi.RemoteException;
-import java.util.Hashtable;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.concurrent.locks.LockSupport;
 import java.wody.LogUtils;
 import java.wody.conf.Configuration;
+import java.wody.io.ClassDictionary;
 import java.wody.io.DataOutputBuffer;
+import java.wody.io.UTF8;
 import java.wody.io.Writable;
 import java.wody.net.NetUtils;
+import java.wody.util.HashedWheelTimer;
+import java.wody.util.HashedWheelTimer.Timeout;
+import java.wody.util.ReflectionUtils;
 
 import javax.net.SocketFactory;
 
 public class Client {
 
-	private int counter = 0;                            // counter for call ids
-	private Hashtable<ConnectionID, Connection> connections = new Hashtable<ConnectionID, Connection>();
+	private final AtomicInteger counter = new AtomicInteger(); // counter for call ids
+	private ConcurrentHashMap<ConnectionID, ConnectionPool> connections =
+		new ConcurrentHashMap<ConnectionID, ConnectionPool>();
+	// 每个 ConnectionID 最近一次握手得到的 server 协议版本，连接关闭后仍然保留
+	private final ConcurrentHashMap<ConnectionID, Long> serverVersions =
+		new ConcurrentHashMap<ConnectionID, Long>();
 	
 	private final int maxIdleTime; //connections will be culled if it was idle for 
     //maxIdleTime msecs
 	private final int maxRetries; //the max. no. of retries for socket connections
+	private final long connectBackoffBase; // in msecs
+	private final long connectBackoffMax; // in msecs
+	private final boolean connectFailFast;
 	private boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 	private int pingInterval; // how often sends ping to the server in msecs
+	private AtomicBoolean running = new AtomicBoolean(true); // if client runs
+	// stop() 在它上面等待所有的 connection 关闭
+	private final Object closeLock = new Object();
+	private final long writeMaxDelay; // in nanoseconds
+	private final int writeMaxBatch;
+	private final int poolSize;
+	private final boolean threadAffinity;
+	private final boolean nioTransport;
+	private final boolean multiplex;
+	private final boolean classDictionary;
+	private final int eventLoopCount;
+	private EventLoop[] eventLoops; // created with the first nio connection
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+	private final long callTimeout;
+	private final HashedWheelTimer timer; // deadlines of all calls
+	private ScheduledExecutorService scheduler; // started with the first connection
+	private ExecutorService connectors; // runs the blocking connect attempts
+	private final int maxSpins;
+	private volatile int spins; // current spin limit, adapted by waiters
 
 	final private static String PING_INTERVAL_NAME = "ipc.ping.interval";
+
+	/**
+	 * How long, in microseconds, the thread writing a batch of calls waits for
+	 * more calls before it flushes. 0 flushes as soon as the queue is drained.
+	 */
+	public static final String WRITE_MAX_DELAY_NAME = "ipc.client.write.max.delay.us";
+	public static final int DEFAULT_WRITE_MAX_DELAY = 0;
+
+	/** Max number of calls written with one flush. */
+	public static final String WRITE_MAX_BATCH_NAME = "ipc.client.write.max.batch";
+	public static final int DEFAULT_WRITE_MAX_BATCH = 64;
+
+	/** Number of connections opened to the same server for the same protocol. */
+	public static final String CONNECTION_POOL_SIZE_NAME = "ipc.client.connection.pool.size";
+	public static final int DEFAULT_CONNECTION_POOL_SIZE = 1;
+
+	/**
+	 * How a call picks one of the pooled connections: "least-outstanding"
+	 * (default) or "thread-affinity".
+	 */
+	public static final String CONNECTION_POOL_POLICY_NAME = "ipc.client.connection.pool.policy";
+	public static final String POOL_POLICY_LEAST_OUTSTANDING = "least-outstanding";
+	public static final String POOL_POLICY_THREAD_AFFINITY = "thread-affinity";
+
+	/**
+	 * How connections do their I/O: "blocking" (default) gives every
+	 * connection its own receiver thread, "nio" multiplexes all connections
+	 * of the client over a few selector event loops.
+	 * 
+	 * "nio" needs a SocketChannel, which a SocketFactory can't create, so a
+	 * client with a SocketFactory other than the default one always uses
+	 * "blocking".
+	 */
+	public static final String TRANSPORT_NAME = "ipc.client.transport";
+	public static final String TRANSPORT_BLOCKING = "blocking";
+	public static final String TRANSPORT_NIO = "nio";
+
+	/**
+	 * If true, all protocols to the same server share the connections to its
+	 * address; each call frame then carries the id of its protocol.
+	 */
+	public static final String MULTIPLEX_NAME = "ipc.client.multiplex";
+
+	/**
+	 * If true, each connection asks the server to encode the class names of
+	 * {@link java.wody.io.ObjectWritable} values through a
+	 * {@link ClassDictionary}, in both directions.
+	 */
+	public static final String CLASS_DICTIONARY_NAME = "ipc.client.class.dictionary";
+
+	/**
+	 * The backoff before the n-th reconnect attempt is a random time between
+	 * 0 and min(max, base * 2^(n-1)) milliseconds.
+	 */
+	public static final String CONNECT_BACKOFF_BASE_NAME = "ipc.client.connect.backoff.base.ms";
+	public static final long DEFAULT_CONNECT_BACKOFF_BASE = 100;
+	public static final String CONNECT_BACKOFF_MAX_NAME = "ipc.client.connect.backoff.max.ms";
+	public static final long DEFAULT_CONNECT_BACKOFF_MAX = 10000;
+
+	/**
+	 * If true, calls to a server we are reconnecting to fail at once with a
+	 * {@link ConnectException} instead of waiting for the connection.
+	 */
+	public static final String CONNECT_FAIL_FAST_NAME = "ipc.client.connect.failfast";
+
+	/**
+	 * Default timeout of a call in milliseconds, 0 for none. A protocol method
+	 * can override it with {@link CallTimeout}.
+	 */
+	public static final String CALL_TIMEOUT_NAME = "ipc.client.call.timeout";
+	public static final long DEFAULT_CALL_TIMEOUT = 0;
+
+	/**
+	 * Max number of times a synchronous caller polls for the response before
+	 * it parks, 0 to park right away. The actual number adapts to how often
+	 * spinning paid off; it is worth it only for very low latency links.
+	 */
+	public static final String CALL_SPIN_NAME = "ipc.client.call.spin.max";
+	public static final int DEFAULT_CALL_SPIN = 0;
+
+	// call 超时时间轮的精度和槽数，一圈约 5 秒
+	private static final int TIMER_TICK = 10;
+	private static final int TIMER_TICKS_PER_WHEEL = 512;
+
+	/** Number of event loops of the nio transport. */
+	public static final String EVENT_LOOPS_NAME = "ipc.client.nio.event.loops";
+
+	// event loop 检查 client 是否已经停止的间隔，以及共用的读缓冲区大小
+	private static final int SELECT_TIMEOUT = 1000;
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
 	final static int DEFAULT_PING_INTERVAL = 60000; // 1 min
 	final static int PING_CALL_ID = -1;
+	// server 对带有版本的 ConnectionHeader 或协议定义的应答
+	final static int HANDSHAKE_CALL_ID = -2;
+	// 在多路复用的连接上定义一个协议
+	final static int PROTOCOL_DEF_CALL_ID = -3;
+	// 所有 connection 共用、只读
+	private static final DataOutputBuffer PING_FRAME = new DataOutputBuffer(4);
+	static {
+		try {
+			PING_FRAME.writeInt(PING_CALL_ID);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
 	private Class<? extends Writable> valueClass;   // class of call values
 	  
@@ -48,39 +204,301 @@ public class Client {
 	 * 
 	 * @author Administrator
 	 */
-	private class Call{
+	class Call{
 		
 		int id;
 		Writable param;
 		Writable value;
 		IOException error;
-		boolean done;
+		volatile boolean done;
+		private volatile Thread waiter; // the thread parked on this call
+		volatile Connection connection; // set once the call is added
+		int protocolId; // id of the protocol on a multiplexed connection
+		volatile Timeout timeout;
 		
 		public Call(Writable param){
 			this.param = param;
-			synchronized (Client.this) {
-				this.id = counter++;
-			}
+			this.id = nextCallId();
 		}
 
 		public void setValue(Writable value) {
+			cancelTimeout();
 			this.value = value;
 			callComplete();
 		}
 
 		public void setException(IOException error) {
+			cancelTimeout();
 			this.error = error;
 			callComplete();
 		}
 
+		private void cancelTimeout() {
+			Timeout t = timeout;
+			if (t != null) {
+				t.cancel();
+			}
+		}
+
+		/**
+		 * Take the call out of its connection's call table, so that its
+		 * response will be skipped.
+		 * 
+		 * @return false if the response or an error already claimed the call
+		 */
+		boolean abandon() {
+			cancelTimeout();
+			Connection c = connection;
+			return c != null && c.calls.remove(this);
+		}
+
+		/** Called by the timer once the call's deadline has passed. */
+		void expire(long timeoutMillis) {
+			Connection c = connection;
+			if (c != null && c.calls.remove(this)) {
+				setException(new SocketTimeoutException("Call " + id + " to "
+						+ c.server + " timed out after " + timeoutMillis + " ms"));
+			}
+		}
+
+		public void callComplete() {
+			this.done = true;
+			// done 与 waiter 都是 volatile：要么 waiter 在 park 之前看到 done，
+			// 要么我们在这里看到 waiter
+			Thread w = waiter;
+			if (w != null) {
+				LockSupport.unpark(w);
+			}
+		}
+
+		/**
+		 * Wait until the call is done, spinning a little first if spinning is
+		 * enabled. Interrupts are remembered and restored, not acted on.
+		 */
+		void waitForCompletion() {
+			if (maxSpins > 0) {
+				int limit = spins;
+				for (int i = 0; i < limit; i++) {
+					if (done) {
+						// 自旋有效，下次可以多转一会儿
+						if (limit < maxSpins) {
+							spins = Math.min(maxSpins, limit << 1);
+						}
+						return;
+					}
+				}
+				spins = Math.max(Math.max(1, maxSpins >> 4), limit >> 1);
+			}
+
+			boolean interrupted = false;
+			waiter = Thread.currentThread();
+			while (!done) {
+				LockSupport.park(this);
+				if (Thread.interrupted()) {
+					interrupted = true;
+				}
+			}
+			waiter = null;
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+	}
+
+	/**
+	 * 不需要调用线程等待的 call，结果通过 future 返回
+	 * 
+	 * future 在接收线程中完成，所以非 async 的回调不能阻塞
+	 */
+	private class AsyncCall extends Call {
+
+		final CompletableFuture<Writable> future = new CompletableFuture<Writable>() {
+			@Override
+			public boolean cancel(boolean mayInterruptIfRunning) {
+				boolean cancelled = super.cancel(mayInterruptIfRunning);
+				if (cancelled) {
+					// 不再等待 response，迟到的 response 会被直接跳过
+					abandon();
+				}
+				return cancelled;
+			}
+		};
+		final InetSocketAddress address;
+
+		public AsyncCall(Writable param, InetSocketAddress address) {
+			super(param);
+			this.address = address;
+		}
+
+		@Override
 		public void callComplete() {
 			this.done = true;
-			notify();
+			if (error == null) {
+				future.complete(value);
+			} else if (error instanceof RemoteException
+					|| error instanceof ServerBusyException) {
+				future.completeExceptionally(error);
+			} else {
+				future.completeExceptionally(wrapException(address, error));
+			}
 		}
 
 	}
 	
 	
+	/**
+	 * Returns the next call id. Ids wrap around within the non-negative ints,
+	 * negative ids are reserved for control frames such as {@link #PING_CALL_ID}.
+	 */
+	private int nextCallId() {
+		return counter.getAndIncrement() & Integer.MAX_VALUE;
+	}
+
+	/**
+	 * connection 上等待 response 的 call，以 call id 为 key
+	 *
+	 * <p>call id 是顺序生成的，所以几乎总是可以直接放进 id &amp; mask 这个槽位，
+	 * put/remove 都只是对数组中一个槽位的 CAS，既不装箱也不加锁。
+	 * 只有当一个 call 迟迟没有返回、新的 id 又绕回到它的槽位时，
+	 * 才放到 overflow 中。
+	 *
+	 * <p>表被 {@link #close()} 之后 put 会失败，调用者需要换一个 connection；
+	 * 这样关闭 connection 时不会有 call 被漏掉而永远等不到结果。
+	 */
+	static class CallTable {
+
+		private static final int DEFAULT_CAPACITY = 256;
+		// state 的最高位
+		private static final int CLOSED = Integer.MIN_VALUE;
+
+		private final AtomicReferenceArray<Call> slots;
+		private final int mask;
+		private final ConcurrentHashMap<Integer, Call> overflow =
+			new ConcurrentHashMap<Integer, Call>();
+		// 低 31 位是表中 call 的个数，最高位是 CLOSED 标记
+		private final AtomicInteger state = new AtomicInteger();
+
+		CallTable() {
+			this.slots = new AtomicReferenceArray<Call>(DEFAULT_CAPACITY);
+			this.mask = DEFAULT_CAPACITY - 1;
+		}
+
+		/**
+		 * Adds a call.
+		 * 
+		 * @return false if the table has been closed
+		 */
+		boolean put(Call call) {
+			for (;;) {
+				int s = state.get();
+				if (s < 0) {
+					return false;
+				}
+				if (state.compareAndSet(s, s + 1)) {
+					break;
+				}
+			}
+			if (!slots.compareAndSet(call.id & mask, null, call)) {
+				overflow.put(call.id, call);
+			}
+			return true;
+		}
+
+		/**
+		 * Removes the call if it is still in the table.
+		 * 
+		 * @return true if this removed it
+		 */
+		boolean remove(Call call) {
+			int i = call.id & mask;
+			if (slots.get(i) == call && slots.compareAndSet(i, call, null)) {
+				state.decrementAndGet();
+				return true;
+			}
+			if (!overflow.isEmpty() && overflow.remove(call.id, call)) {
+				state.decrementAndGet();
+				return true;
+			}
+			return false;
+		}
+
+		/** Removes and returns the call with the given id, or null. */
+		Call remove(int id) {
+			int i = id & mask;
+			Call call = slots.get(i);
+			if (call != null && call.id == id && slots.compareAndSet(i, call, null)) {
+				state.decrementAndGet();
+				return call;
+			}
+			if (!overflow.isEmpty()) {
+				call = overflow.remove(id);
+				if (call != null) {
+					state.decrementAndGet();
+					return call;
+				}
+			}
+			return null;
+		}
+
+		int size() {
+			return state.get() & Integer.MAX_VALUE;
+		}
+
+		boolean isEmpty() {
+			return size() == 0;
+		}
+
+		/**
+		 * Seals the table if it holds no calls.
+		 * 
+		 * @return true if the table was empty and is now closed
+		 */
+		boolean closeIfEmpty() {
+			return state.compareAndSet(0, CLOSED);
+		}
+
+		/** Seals the table so that no more calls can be added. */
+		void close() {
+			for (;;) {
+				int s = state.get();
+				if (s < 0 || state.compareAndSet(s, s | CLOSED)) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Removes all calls. The table must have been closed, so that a put
+		 * racing with the close is either refused or seen here.
+		 */
+		List<Call> drain() {
+			List<Call> drained = new ArrayList<Call>();
+			while (!isEmpty()) {
+				for (int i = 0; i < slots.length(); i++) {
+					Call call = slots.get(i);
+					if (call != null && slots.compareAndSet(i, call, null)) {
+						state.decrementAndGet();
+						drained.add(call);
+					}
+				}
+				for (Integer id : overflow.keySet()) {
+					Call call = overflow.remove(id);
+					if (call != null) {
+						state.decrementAndGet();
+						drained.add(call);
+					}
+				}
+				if (!isEmpty()) {
+					// 有 put 计了数但还没有放进去
+					Thread.yield();
+				}
+			}
+			return drained;
+		}
+	}
+
 	/**
 	 * 标记一个connection，一个client中包含有多个connection
 	 * 
@@ -90,12 +508,24 @@ public class Client {
 		
 		InetSocketAddress address;
 		Class<?> protocol;
+		long clientVersion;
+		private ConnectionID multiplexed; // created on first use
 		
 		private static final int PRIME = 16777619;
 		
 		public ConnectionID(InetSocketAddress address, Class<?> protocol){
+			this(address, protocol, ConnectionHeader.UNKNOWN_VERSION);
+		}
+
+		/**
+		 * A connection whose header carries <code>clientVersion</code>, so
+		 * the server answers with its version in the handshake.
+		 */
+		public ConnectionID(InetSocketAddress address, Class<?> protocol,
+				long clientVersion){
 			this.address = address;
 			this.protocol = protocol;
+			this.clientVersion = clientVersion;
 		}
 
 		public InetSocketAddress getAddress() {
@@ -106,10 +536,26 @@ public class Client {
 			return protocol;
 		}
 
+		public long getClientVersion() {
+			return clientVersion;
+		}
+
+		/** The id that multiplexed connections to the address are pooled by. */
+		ConnectionID multiplexed() {
+			ConnectionID id = multiplexed;
+			if (id == null) {
+				// 并发时可能建出多个，它们是相等的
+				id = new ConnectionID(address, null);
+				multiplexed = id;
+			}
+			return id;
+		}
+
 		//因为是要做key，所以需要重载equals 和 hashcode两个函数
 		@Override
 		public int hashCode() {
-			return address.hashCode() + PRIME * System.identityHashCode(protocol);
+			return address.hashCode() + PRIME * System.identityHashCode(protocol)
+					+ (int) (clientVersion ^ (clientVersion >>> 32));
 		}
 
 		@Override
@@ -122,39 +568,210 @@ public class Client {
 				return false;
 			
 			ConnectionID other = (ConnectionID) obj;
-			return address.equals(other.address) && protocol == other.protocol;
+			return address.equals(other.address) && protocol == other.protocol
+					&& clientVersion == other.clientVersion;
 		}
 		
 	}
 	
 	/**
+	 * 同一个 ConnectionID 的一组 connection
 	 * 
+	 * 一个 connection 只有一个接收线程和一个写出口，多核的客户端对同一个
+	 * server 大量调用时会在它上面排队，所以允许同时开多个 connection，
+	 * 按 least-outstanding 或者按调用线程选择其中一个。
+	 * 槽位上的 connection 是在需要时才建立的。
+	 */
+	private class ConnectionPool {
+
+		private final ConnectionID remoteId;
+		private final AtomicReferenceArray<Connection> slots;
+		private boolean retired; // guarded by this
+
+		ConnectionPool(ConnectionID remoteId, int size) {
+			this.remoteId = remoteId;
+			this.slots = new AtomicReferenceArray<Connection>(size);
+		}
+
+		/** Pick the slot the next call should go to. */
+		int pickSlot() {
+			int size = slots.length();
+			if (size == 1) {
+				return 0;
+			}
+			if (threadAffinity) {
+				return (int) ((Thread.currentThread().getId() & Long.MAX_VALUE) % size);
+			}
+
+			// 已有的空闲 connection 优于空槽，以免无谓地建新的 connection
+			int best = -1;
+			int bestCalls = Integer.MAX_VALUE;
+			int emptySlot = -1;
+			for (int i = 0; i < size; i++) {
+				Connection connection = slots.get(i);
+				if (connection == null) {
+					if (emptySlot < 0) {
+						emptySlot = i;
+					}
+					continue;
+				}
+				int outstanding = connection.getOutstandingCalls();
+				if (outstanding < bestCalls) {
+					best = i;
+					bestCalls = outstanding;
+				}
+			}
+			if (best < 0 || (bestCalls > 0 && emptySlot >= 0)) {
+				return emptySlot;
+			}
+			return best;
+		}
+
+		/**
+		 * Returns the connection in the slot, creating it if necessary.
+		 * 
+		 * @return null if the pool has been retired
+		 */
+		Connection get(int slot) throws IOException {
+			Connection connection = slots.get(slot);
+			if (connection == null) {
+				synchronized (this) {
+					if (retired) {
+						return null;
+					}
+					connection = slots.get(slot);
+					if (connection == null) {
+						connection = newConnection(remoteId, this, slot);
+						slots.set(slot, connection);
+					}
+				}
+			}
+			return connection;
+		}
+
+		/** Take the connection out of its slot if it is still there. */
+		void remove(Connection connection) {
+			slots.compareAndSet(connection.slot, connection, null);
+		}
+
+		boolean isEmpty() {
+			for (int i = 0; i < slots.length(); i++) {
+				if (slots.get(i) != null) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Drop the pool from the client if it has no connections left, so
+		 * that pools of servers we no longer talk to don't pile up.
+		 */
+		synchronized void retireIfEmpty() {
+			if (!retired && isEmpty()) {
+				retired = true;
+				connections.remove(remoteId, this);
+			}
+		}
+
+		void heartbeat(long now) {
+			for (int i = 0; i < slots.length(); i++) {
+				Connection connection = slots.get(i);
+				if (connection != null) {
+					connection.heartbeat(now);
+				}
+			}
+		}
+
+		void closeIdle(long now) {
+			for (int i = 0; i < slots.length(); i++) {
+				Connection connection = slots.get(i);
+				if (connection != null) {
+					connection.closeIfIdle(now);
+				}
+			}
+		}
+
+		void wakeup() {
+			for (int i = 0; i < slots.length(); i++) {
+				Connection connection = slots.get(i);
+				if (connection != null) {
+					connection.wakeup();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 一个 connection 上的协议：普通 connection 只有 header 中的协议，id 为 0；
+	 * 多路复用的 connection 上每个协议第一次使用时被分配一个 id
+	 */
+	private static class ProtocolDef {
+		final ConnectionID remoteId;
+		final int id;
+		// server 在握手中给出的协议版本，连接关闭时以异常结束
+		final CompletableFuture<Long> handshake = new CompletableFuture<Long>();
+
+		ProtocolDef(ConnectionID remoteId, int id) {
+			this.remoteId = remoteId;
+			this.id = id;
+		}
+	}
+
+	/**
+	 * 到某个 server 的一个连接，与传输方式无关的部分：call 表、待发送的 frame、
+	 * response 的解析以及关闭时对 call 的清理
 	 * 
 	 * @author Administrator
 	 */
-	public class Connection extends Thread{
+	public abstract class Connection {
 
-		private ConnectionID remoteId;
-		private InetSocketAddress server;
-		private Socket socket = null;
+		protected ConnectionID remoteId;
+		private final ConnectionPool pool;
+		protected final int slot; // index in the pool
+		protected InetSocketAddress server;
+		protected volatile Socket socket = null;
 		private ConnectionHeader header;
+		// 类名字典，两个方向共用一个对象但各自编号；没有启用时为 null
+		protected final ClassDictionary dictionary;
+		// 需要握手的协议，按 ConnectionID 与按 id 各一份；新的协议只在锁
+		// protocols 时加入
+		private final ConcurrentHashMap<ConnectionID, ProtocolDef> protocols =
+			new ConcurrentHashMap<ConnectionID, ProtocolDef>();
+		private final ConcurrentHashMap<Integer, ProtocolDef> protocolsById =
+			new ConcurrentHashMap<Integer, ProtocolDef>();
 		
-		private Hashtable<Integer, Call> calls = 
-			new Hashtable<Integer, Call>();
-		
-		private DataInputStream dis;
-		private DataOutputStream dos;
+		protected final CallTable calls = new CallTable();
+
+		// 已经序列化好、等待写出的 frame (包括长度)
+		protected final ConcurrentLinkedQueue<DataOutputBuffer> sendQueue =
+			new ConcurrentLinkedQueue<DataOutputBuffer>();
 		
 		// 最后一次 I/O 活动的时间
-		private AtomicLong lastActivity = new AtomicLong();
+		protected AtomicLong lastActivity = new AtomicLong();
 		// 只是connection是否closed
-	    private AtomicBoolean shouldCloseConnection = new AtomicBoolean();  // indicate if the connection is closed
+	    protected AtomicBoolean shouldCloseConnection = new AtomicBoolean();  // indicate if the connection is closed
+	    private volatile boolean ioStarted; // the socket is connected and set up
+	    private final AtomicBoolean connecting = new AtomicBoolean();
+	    private volatile IOException connectFailure; // set while reconnecting
+	    private int connectFailures; // only accessed by the connect task
+
+	    private final Runnable connectTask = new Runnable() {
+	    	public void run() {
+	    		tryConnect();
+	    	}
+	    };
 	    private IOException closeException; // close reason
+	    private boolean closed; // guarded by this
 		
-		public Connection(ConnectionID remoteId) throws IOException {
+		public Connection(ConnectionID remoteId, ConnectionPool pool, int slot)
+				throws IOException {
 			
 			this.remoteId = remoteId;
+			this.pool = pool;
+			this.slot = slot;
 			this.server = remoteId.getAddress();
+			touch(); // 刚建立的 connection 不算空闲
 			
 			if(server.isUnresolved()){
 				throw new UnknownHostException("unknown host: " + 
@@ -163,237 +780,473 @@ public class Client {
 			
 			//这是干什么的？
 			Class<?> protocol = remoteId.getProtocol();
-			header = new ConnectionHeader(protocol == null ? null : protocol.getName());
-		      
-			
-			this.setName("IPC Client (" + sf.hashCode() +") connection to " +
-			          remoteId.getAddress().toString());
-			this.setDaemon(true);
-			
-		}
-		
-		public void sendParam(Call call) {
+			if (multiplex) {
+				header = ConnectionHeader.multiplexed();
+			} else {
+				header = new ConnectionHeader(protocol == null ? null : protocol
+						.getName(), remoteId.getClientVersion());
+				if (remoteId.getClientVersion() != ConnectionHeader.UNKNOWN_VERSION) {
+					ProtocolDef def = new ProtocolDef(remoteId, 0);
+					protocols.put(remoteId, def);
+					protocolsById.put(def.id, def);
+				}
+			}
+			if (classDictionary) {
+				header.setClassDictionary(true);
+				dictionary = new ClassDictionary();
+			} else {
+				dictionary = null;
+			}
 			
 		}
 
+		/** Create an unconnected socket for this transport. */
+		protected abstract Socket newSocket() throws IOException;
 
-		public synchronized boolean addCall(Call call){
-			calls.put(call.id, call);
-			notify();
-			return true;
-		}
+		/**
+		 * Start reading and writing once the socket is connected. The header
+		 * must be the first thing written.
+		 */
+		protected abstract void startIO() throws IOException;
 
-		@Override
-		public void run() {
-			// TODO Auto-generated method stub
-			super.run();
+		/** Make sure the queued frames get written. */
+		protected abstract void flushQueued();
+
+		/** Close the socket and release the transport's resources. */
+		protected abstract void closeIO();
+
+		/** Wake up the transport so that it notices the client is stopping. */
+		protected abstract void wakeupIO();
+
+		/**
+		 * Called when the client stops. A connection that is not up yet may be
+		 * waiting for a reconnect that will never run, so it is closed here.
+		 */
+		void wakeup() {
+			if (ioStarted) {
+				wakeupIO();
+			} else {
+				markClosed(new IOException("Client is stopped"));
+				close();
+			}
 		}
 		
-		/** This class sends a ping to the remote side when timeout on
-	     * reading. If no failure is detected, it retries until at least
-	     * a byte is read.
-	     */
-		private class PingInputStream extends FilterInputStream {
-			/* constructor */
-			protected PingInputStream(InputStream in) {
-				super(in);
-			}
-
-			/*
-			 * Process timeout exception if the connection is not going to be
-			 * closed, send a ping. otherwise, throw the timeout exception.
-			 */
-			private void handleTimeout(SocketTimeoutException e)
-					throws IOException {
-				if (shouldCloseConnection.get() || !running.get()) {
-					throw e;
+		/**
+		 * Initiates a call by sending the parameter to the remote server.
+		 * 
+		 * 每个调用线程只负责把 call 序列化成 frame 放入 sendQueue，
+		 * 写出由传输层完成，并发的小 call 因此可以共用一次系统调用。
+		 */
+		public void sendParam(Call call) {
+			if (shouldCloseConnection.get()) {
+				return;
+			}
+
+			try {
+				DataOutputBuffer d = new DataOutputBuffer();
+				d.writeInt(0); // data length, filled in below
+				d.writeInt(call.id);
+				if (header.isMultiplexed()) {
+					d.writeInt(call.protocolId);
+				}
+				if (dictionary == null) {
+					call.param.write(d);
+					enqueue(d);
 				} else {
-					sendPing();
+					ClassDictionary.Output out = dictionary.newOutput(d);
+					call.param.write(out);
+					enqueue(d);
+					// 之后序列化的 frame 一定排在这个之后，可以只写 id
+					out.commit();
 				}
+			} catch (IOException e) {
+				markClosed(e);
+				close();
+				return;
 			}
-
-			/**
-			 * Read a byte from the stream. Send a ping if timeout on read.
-			 * Retries if no failure is detected until a byte is read.
-			 * 
-			 * @throws IOException
-			 *             for any IO problem other than socket timeout
-			 */
-			public int read() throws IOException {
-				do {
-					try {
-						return super.read();
-					} catch (SocketTimeoutException e) {
-						handleTimeout(e);
-					}
-				} while (true);
-			}
-
-			/**
-			 * Read bytes into a buffer starting from offset <code>off</code>
-			 * Send a ping if timeout on read. Retries if no failure is detected
-			 * until a byte is read.
-			 * 
-			 * @return the total number of bytes read; -1 if the connection is
-			 *         closed.
-			 */
-			public int read(byte[] buf, int off, int len) throws IOException {
-				do {
-					try {
-						return super.read(buf, off, len);
-					} catch (SocketTimeoutException e) {
-						handleTimeout(e);
-					}
-				} while (true);
+			// 连接还没建立时由 tryConnect 负责写出
+			if (ioStarted) {
+				flushQueued();
 			}
 		}
 
-		public void setupIOStream() {
+		/** Fill in the data length at the start of a frame and queue it. */
+		private void enqueue(DataOutputBuffer d) {
+			int dataLength = d.getLength() - 4;
+			byte[] data = d.getData();
+			data[0] = (byte) (dataLength >>> 24);
+			data[1] = (byte) (dataLength >>> 16);
+			data[2] = (byte) (dataLength >>> 8);
+			data[3] = (byte) dataLength;
+			sendQueue.add(d);
+		}
 
-			if (socket != null) {
-				return;
+		/**
+		 * The protocol of <code>cID</code> on this connection. On a
+		 * multiplexed connection a protocol used for the first time is given
+		 * the next id, and its definition is queued before any call that can
+		 * see the id.
+		 * 
+		 * @return the protocol, or null if this connection does no handshake
+		 *         for it
+		 */
+		ProtocolDef defineProtocol(ConnectionID cID) throws IOException {
+			ProtocolDef def = protocols.get(cID);
+			if (def != null || !header.isMultiplexed()) {
+				return def;
 			}
 
-			short ioFailures = 0;
-		    short timeoutFailures = 0;
-		      
-			try {
-				while (true) {
-					try {
-						socket = sf.createSocket();
-						this.socket.setTcpNoDelay(tcpNoDelay);
-						NetUtils.connect(this.socket, remoteId.getAddress(),
-								20000);
-						this.socket.setSoTimeout(pingInterval);
-						break;
-					} catch (SocketTimeoutException toe) {
-						/*
-						 * The max number of retries is 45, which amounts to
-						 * 20s*45 = 15 minutes retries.
-						 */
-						handleConnectionFailure(timeoutFailures++, 45, toe);
-					} catch (IOException ie) {
-						// maxRetries是一个默认值0，因此当timeoutFailures
-						// 失败45次后，到这里就直接抛异常，终止
-						handleConnectionFailure(ioFailures++, maxRetries, ie);
-					}
+			synchronized (protocols) {
+				def = protocols.get(cID);
+				if (def != null) {
+					return def;
 				}
+				def = new ProtocolDef(cID, protocolsById.size() + 1);
+				Class<?> protocol = cID.getProtocol();
 
-				this.dis = new DataInputStream(new BufferedInputStream(
-						new PingInputStream(NetUtils.getInputStream(socket))));
-				this.dos = new DataOutputStream(new BufferedOutputStream(
-						NetUtils.getOutputStream(socket)));
+				DataOutputBuffer d = new DataOutputBuffer();
+				d.writeInt(0); // data length, filled in by enqueue
+				d.writeInt(PROTOCOL_DEF_CALL_ID);
+				d.writeInt(def.id);
+				UTF8.writeString(d, protocol == null ? "" : protocol.getName());
+				d.writeLong(cID.getClientVersion());
 
-				writeHeader();
+				protocolsById.put(def.id, def);
+				enqueue(d);
+				// 只有在定义已经排入 sendQueue 之后，其它线程才能看到这个 id
+				protocols.put(cID, def);
+			}
+			if (shouldCloseConnection.get()) {
+				// close 可能已经错过了这个协议
+				def.handshake.completeExceptionally(new IOException(
+						"Connection to " + server + " is closed"));
+			} else if (ioStarted) {
+				flushQueued();
+			}
+			return def;
+		}
 
-				// update last activity time
-				touch();
+		/**
+		 * Add a call to this connection's call table.
+		 * 
+		 * @return false if the connection is closed and the call was not added
+		 */
+		public boolean addCall(Call call){
+			return calls.put(call);
+		}
+
+		/** Number of calls waiting for a response on this connection. */
+		int getOutstandingCalls() {
+			return calls.size();
+		}
 
-				// start the receiver thread after the socket connection has
-				// been set up
-				start();
+		/**
+		 * Complete a call from its response. The value is read straight from
+		 * <code>in</code> into a new valueClass instance.
+		 */
+		protected void completeCall(Call call, int id, int state, DataInput in)
+				throws IOException {
+			try {
+				if (state == Status.SUCCESS.state) {
+					Writable value = ReflectionUtils.newInstance(valueClass, conf);
+					value.readFields(in); // read value
+					call.setValue(value);
+				} else if (state == Status.ERROR.state) {
+					call.setException(new RemoteException(UTF8.readString(in),
+							UTF8.readString(in)));
+				} else if (state == Status.BUSY.state) {
+					call.setException(new ServerBusyException("Call " + id
+							+ " to " + server + " was rejected, server is busy"));
+				} else if (state == Status.FATAL.state) {
+					RemoteException e = new RemoteException(UTF8.readString(in),
+							UTF8.readString(in));
+					call.setException(e);
+					markClosed(e);
+				} else {
+					throw new IOException("Unknown status " + state
+							+ " of call " + id);
+				}
 			} catch (IOException e) {
-				markClosed(e);
-				close();
+				// call 已经从表中移除了，close 时不会再通知它
+				call.setException(e);
+				throw e;
+			} catch (RuntimeException e) {
+				// 例如 value 的类无法加载，之后的数据已经无法拆帧
+				IOException ioe = new IOException("Failed to read the response of call "
+						+ id + " from " + server, e);
+				call.setException(ioe);
+				throw ioe;
 			}
+		}
 
+		/** A stream over response payloads that knows the class dictionary. */
+		protected DataInputStream newInput(InputStream in) {
+			return dictionary == null ? new DataInputStream(in) : dictionary
+					.newInput(in);
 		}
-		
-		/* Write the header for each connection
-	     * Out is not synchronized because only the first thread does this.
-	     */
-		private void writeHeader() throws IOException {
-			// Write out the header and version
-			dos.write(Server.HEADER.array());
-			dos.write(Server.CURRENT_VERSION);
 
-			// Write out the ConnectionHeader
-			DataOutputBuffer buf = new DataOutputBuffer();
-			header.write(buf);
+		/**
+		 * Read and drop the value of a response nobody waits for. It may
+		 * define classes that later responses refer to by id alone.
+		 */
+		protected void discardValue(int state, DataInput in) throws IOException {
+			if (state == Status.SUCCESS.state) {
+				ReflectionUtils.newInstance(valueClass, conf).readFields(in);
+			} else if (state == Status.ERROR.state || state == Status.FATAL.state) {
+				UTF8.readString(in);
+				UTF8.readString(in);
+			}
+		}
 
-			// Write out the payload length
+		/**
+		 * Read the server's answer to the client version in the header and
+		 * remember it for the ConnectionID.
+		 */
+		protected void completeHandshake(int state, DataInput in)
+				throws IOException {
+			int protocolId = in.readInt();
+			ProtocolDef def = protocolsById.get(protocolId);
+			if (def == null) {
+				throw new IOException("Handshake for unknown protocol id "
+						+ protocolId);
+			}
+			if (state == Status.SUCCESS.state) {
+				long version = in.readLong();
+				serverVersions.put(def.remoteId, version);
+				def.handshake.complete(version);
+			} else if (state == Status.ERROR.state) {
+				def.handshake.completeExceptionally(new RemoteException(UTF8
+						.readString(in), UTF8.readString(in)));
+			} else {
+				throw new IOException("Unknown status " + state
+						+ " of the handshake");
+			}
+		}
+
+		/**
+		 * Close the connection if it has been idle for maxIdleTime and has no
+		 * pending calls.
+		 * 
+		 * closeIfEmpty 与 addCall 是互斥的，不会关掉一个刚加入了 call 的连接；
+		 * addCall 失败的调用者会换一个新的 connection。
+		 * 
+		 * @return true if the connection was closed
+		 */
+		boolean closeIfIdle(long now) {
+			if (now - lastActivity.get() < maxIdleTime || !calls.closeIfEmpty()) {
+				return false;
+			}
+			markClosed(null);
+			close();
+			return true;
+		}
+
+		/**
+		 * Send a ping to the server if calls are waiting on this connection
+		 * and nothing has been received for the ping interval. A connection
+		 * with no pending calls has nothing to detect, and a connection that
+		 * is receiving responses is evidently alive.
+		 */
+		void heartbeat(long now) {
+			if (!ioStarted || shouldCloseConnection.get() || calls.isEmpty()
+					|| now - lastActivity.get() < pingInterval) {
+				return;
+			}
+			lastActivity.set(now);
+			sendQueue.add(PING_FRAME);
+			flushQueued();
+		}
+
+		/**
+		 * Start connecting in the background unless that already happened.
+		 * Calls sent before the connection is up wait in sendQueue, bounded
+		 * by their own timeouts.
+		 */
+		public void setupIOStream() {
+			// 连接建立之后每个 call 都只走到这里，不需要拿锁
+			if (!ioStarted && connecting.compareAndSet(false, true)) {
+				try {
+					connectors.execute(connectTask);
+				} catch (RejectedExecutionException e) {
+					// client 已经停止
+					markClosed(new IOException("Client is stopped"));
+					close();
+				}
+			}
+		}
+
+		/**
+		 * One connect attempt, run on a connector thread. A failed attempt
+		 * schedules the next one instead of sleeping.
+		 */
+		private void tryConnect() {
+			if (shouldCloseConnection.get()) {
+				return;
+			}
+			if (!running.get()) {
+				markClosed(new IOException("Client is stopped"));
+				close();
+				return;
+			}
+
+			try {
+				socket = newSocket();
+				this.socket.setTcpNoDelay(tcpNoDelay);
+				NetUtils.connect(this.socket, remoteId.getAddress(), 20000);
+			} catch (IOException e) {
+				handleConnectionFailure(e);
+				return;
+			}
+			if (shouldCloseConnection.get()) {
+				// 连接期间被 stop、reaper 或 FATAL response 关闭了，那时
+				// close() 已经返回，新的 socket 只能由这里关闭
+				handleConnectionFailure(new IOException("Connection to "
+						+ server + " was closed while connecting"));
+				return;
+			}
+
+			try {
+				// update last activity time
+				touch();
+
+				startIO();
+				connectFailure = null;
+				ioStarted = true;
+				// 连接建立之前入队的 call
+				flushQueued();
+			} catch (IOException e) {
+				markClosed(e);
+				close();
+			}
+		}
+
+		/**
+		 * The failure of the last connect attempt while we are retrying, or
+		 * null if the connection is up or has not failed yet.
+		 */
+		IOException getConnectFailure() {
+			return connectFailure;
+		}
+		
+		/* The header for each connection: the magic, the version
+		 * and the ConnectionHeader.
+	     */
+		protected DataOutputBuffer headerFrame() throws IOException {
+			DataOutputBuffer frame = new DataOutputBuffer();
+
+			// Write out the header and version
+			frame.write(Server.HEADER.array());
+			frame.write(Server.CURRENT_VERSION);
+
+			// Write out the ConnectionHeader
+			DataOutputBuffer buf = new DataOutputBuffer();
+			header.write(buf);
+
+			// Write out the payload length
 			int bufLen = buf.getLength();
-			dos.writeInt(bufLen);
-			dos.write(buf.getData(), 0, bufLen);
+			frame.writeInt(bufLen);
+			frame.write(buf.getData(), 0, bufLen);
+			return frame;
 		}
 	    
 		/** Update lastActivity with the current time. */
-		private void touch() {
+		protected void touch() {
 			lastActivity.set(System.currentTimeMillis());
 		}
 		
 		/** Handle connection failures
 	     *
-	     * If the current number of retries is equal to the max number of retries,
-	     * stop retrying and throw the exception; Otherwise backoff 1 second and
-	     * try connecting again.
+	     * If the max number of retries is reached, close the connection, which
+	     * fails all its calls; Otherwise schedule another attempt after an
+	     * exponential backoff with full jitter, so that clients of a
+	     * restarted server don't all come back at the same moment.
 	     *
-	     * This Method is only called from inside setupIOstreams(), which is
-	     * synchronized. Hence the sleep is synchronized; 
-	     * the locks will be retained.
-	     *
-	     * @param curRetries current number of retries
-	     * @param maxRetries max number of retries allowed
 	     * @param ioe failure reason
-	     * @throws IOException if max number of retries is reached
 	     */
-	    private void handleConnectionFailure(int curRetries, int maxRetries,
-				IOException ioe) throws IOException {
+	    private void handleConnectionFailure(IOException ioe) {
 			// close the current connection
-			try {
-				socket.close();
-			} catch (IOException e) {
-				LogUtils.log(e);
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					LogUtils.log(e);
+				}
 			}
-			// set socket to null so that the next call to setupIOstreams
+			// set socket to null so that the next attempt
 			// can start the process of connect all over again.
 			socket = null;
+			connectFailure = ioe;
+			if (shouldCloseConnection.get()) {
+				return; // 已经关闭了，不再重试
+			}
 
-			// throw the exception if the maximum number of retries is reached
-			if (curRetries >= maxRetries) {
-				throw ioe;
+			// give up if the maximum number of retries is reached
+			if (connectFailures++ >= maxRetries || !running.get()) {
+				markClosed(ioe);
+				close();
+				return;
 			}
 
-			// otherwise back off and retry
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException ignored) {
+			long ceiling = connectBackoffBase << Math.min(connectFailures - 1, 20);
+			if (ceiling <= 0 || ceiling > connectBackoffMax) {
+				ceiling = connectBackoffMax;
 			}
+			long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
 
-			LogUtils.log("Retrying connect to server: " + server
-					+ ". Already tried " + curRetries + " time(s).");
+			LogUtils.log("Retrying connect to server: " + server + " in "
+					+ delay + " ms. Already tried " + connectFailures
+					+ " time(s).");
+			try {
+				scheduler.schedule(new Runnable() {
+					public void run() {
+						connectors.execute(connectTask);
+					}
+				}, delay, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// client 已经停止
+				markClosed(ioe);
+				close();
+			}
 		}
 	    
-		private synchronized void markClosed(IOException e) {
+		protected synchronized void markClosed(IOException e) {
 			if (shouldCloseConnection.compareAndSet(false, true)) {
 				closeException = e;
+				// 此后 addCall 都会失败，调用者会去建一个新的 connection
+				calls.close();
 				notifyAll();
 			}
 		}
 	      
 	      /** Close the connection. */
-		private synchronized void close() {
+		protected synchronized void close() {
 			if (!shouldCloseConnection.get()) {
 				LogUtils.log("The connection is not in the closed state");
 				return;
 			}
+			if (closed) {
+				// 例如 reaper 关闭 socket 之后，接收线程退出时会再调用一次
+				return;
+			}
+			closed = true;
 
 			// release the resources
 			// first thing to do;take the connection out of the connection list
-			synchronized (connections) {
-				if (connections.get(remoteId) == this) {
-					connections.remove(remoteId);
+			pool.remove(this);
+			if (!running.get()) {
+				synchronized (closeLock) {
+					closeLock.notifyAll();
 				}
 			}
 
 			// close the streams and therefore the socket
-			try {
-				dos.close();
-				dis.close();
-			} catch (IOException e) {
-				LogUtils.log(e);
+			closeIO();
+			sendQueue.clear();
+			IOException handshakeFailure = closeException != null ? closeException
+					: new IOException("Connection to " + server + " is closed");
+			for (ProtocolDef def : protocolsById.values()) {
+				def.handshake.completeExceptionally(handshakeFailure);
 			}
-			
 
 			// clean up all calls
 			if (closeException == null) {
@@ -414,29 +1267,592 @@ public class Client {
 		
 	    /* Cleanup all calls and mark them as done */
 		private void cleanupCalls() {
-			Iterator<Entry<Integer, Call>> itor = calls.entrySet().iterator();
-			while (itor.hasNext()) {
-				Call c = itor.next().getValue();
+			for (Call c : calls.drain()) {
 				c.setException(closeException); // local exception
-				itor.remove();
 			}
 		}
 		
 	}
+
+	/**
+	 * 使用阻塞 socket 的 connection，每个 connection 有一个自己的接收线程
+	 */
+	private class BlockingConnection extends Connection implements Runnable {
+
+		private final Thread thread;
+		private DataInputStream dis;
+		private DataOutputStream dos;
+
+		// 当前是否有线程在写 dos
+		private final AtomicBoolean writing = new AtomicBoolean();
+
+		public BlockingConnection(ConnectionID remoteId, ConnectionPool pool,
+				int slot) throws IOException {
+			super(remoteId, pool, slot);
+			this.thread = new Thread(this, "IPC Client (" + sf.hashCode()
+					+ ") connection to " + remoteId.getAddress().toString()
+					+ " #" + slot);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		protected Socket newSocket() throws IOException {
+			return sf.createSocket();
+		}
+
+		@Override
+		protected void startIO() throws IOException {
+			this.dis = newInput(new BufferedInputStream(NetUtils
+					.getInputStream(socket)));
+			this.dos = new DataOutputStream(new BufferedOutputStream(
+					NetUtils.getOutputStream(socket)));
+
+			// Out is not synchronized because only the first thread does this.
+			DataOutputBuffer header = headerFrame();
+			dos.write(header.getData(), 0, header.getLength());
+			if (sendQueue.isEmpty()) {
+				// 没有 call 与 header 一起写出，例如只等待握手的 getProxy
+				dos.flush();
+			}
+
+			// start the receiver thread after the socket connection has
+			// been set up
+			thread.start();
+		}
+
+		/**
+		 * Writes out the queued frames unless another thread is already doing
+		 * it, in which case that thread will pick up our frame as well.
+		 */
+		@Override
+		protected void flushQueued() {
+			// 释放 writing 之后要再检查一次队列，
+			// 否则在我们写完最后一批之后入队的 frame 可能没人去写
+			while (!sendQueue.isEmpty() && writing.compareAndSet(false, true)) {
+				try {
+					int batch = 0;
+					DataOutputBuffer frame;
+					while (batch < writeMaxBatch
+							&& (frame = sendQueue.poll()) != null) {
+						dos.write(frame.getData(), 0, frame.getLength());
+						batch++;
+					}
+					if (batch < writeMaxBatch && writeMaxDelay > 0) {
+						// 再等一小段时间，凑更多的 call 一起发出
+						long deadline = System.nanoTime() + writeMaxDelay;
+						while (batch < writeMaxBatch
+								&& System.nanoTime() < deadline) {
+							frame = sendQueue.poll();
+							if (frame == null) {
+								Thread.yield();
+							} else {
+								dos.write(frame.getData(), 0, frame.getLength());
+								batch++;
+							}
+						}
+					}
+					dos.flush();
+				} catch (IOException e) {
+					sendQueue.clear();
+					markClosed(e);
+					close(); // 接收线程也会因此退出
+				} finally {
+					writing.set(false);
+				}
+			}
+		}
+
+		@Override
+		protected void closeIO() {
+			try {
+				if (dos != null) {
+					dos.close();
+				}
+				if (dis != null) {
+					dis.close();
+				} else if (socket != null) {
+					socket.close();
+				}
+			} catch (IOException e) {
+				LogUtils.log(e);
+			}
+		}
+
+		@Override
+		protected void wakeupIO() {
+			// 读操作没有超时，只能通过关闭 socket 让接收线程退出
+			markClosed(new IOException("Client is stopped"));
+			close();
+		}
+
+		/**
+		 * Receives responses until the connection is closed or the client is
+		 * stopped.
+		 * 
+		 * 只有这一个线程读 dis，读操作没有超时。空闲的连接由 reaper 关闭 socket，
+		 * 这里的读操作会因此失败并退出；ping 由 heartbeat 发出。
+		 */
+		public void run() {
+			try {
+				while (!shouldCloseConnection.get() && running.get()) {
+					receiveResponse();
+				}
+			} catch (IOException e) {
+				markClosed(e);
+			} catch (Throwable t) {
+				// 不能让接收线程不声不响地退出，等待中的 call 都要失败
+				markClosed(new IOException("Unexpected error reading responses from "
+						+ server, t));
+			}
+
+			close();
+		}
+
+		/**
+		 * Receive a response. The value is read straight from the buffered
+		 * stream; the payload length is only needed to skip responses that
+		 * nobody is waiting for.
+		 */
+		private void receiveResponse() throws IOException {
+			int id = dis.readInt(); // try to read an id
+			touch();
+			int state = dis.readInt(); // read call status
+			int length = dis.readInt(); // read payload length
+
+			if (id == HANDSHAKE_CALL_ID) {
+				completeHandshake(state, dis);
+				return;
+			}
+			Call call = calls.remove(id);
+			if (call == null) {
+				// 没有人在等这个 response 了
+				if (dictionary == null) {
+					skipFully(length);
+				} else {
+					discardValue(state, dis);
+				}
+				return;
+			}
+			completeCall(call, id, state, dis);
+		}
+
+		private void skipFully(int len) throws IOException {
+			while (len > 0) {
+				int skipped = dis.skipBytes(len);
+				if (skipped <= 0) {
+					dis.readByte();
+					skipped = 1;
+				}
+				len -= skipped;
+			}
+		}
+	}
+
+	/**
+	 * 由 {@link EventLoop} 驱动的非阻塞 connection
+	 * 
+	 * 读写都只在 event loop 线程中进行。response 按
+	 * id/status/length 的 header 增量地拆帧，完整地落在读缓冲区中的 response
+	 * 直接从缓冲区解析，只有跨越多次读的 response 才会复制到单独的缓冲区。
+	 */
+	private class NioConnection extends Connection {
+
+		private final EventLoop loop;
+		private SocketChannel channel;
+		private SelectionKey key;
+
+		// 下面的字段只在 event loop 线程中访问。读缓冲区由 event loop 共用，
+		// 一次读结束时剩下的不完整的 header 或 payload 保存在这里
+		private final ByteBuffer header =
+			ByteBuffer.allocate(Server.RESPONSE_HEADER_LENGTH);
+		private int respId;
+		private int respState;
+		private int respLength = -1; // -1 while waiting for a header
+		private ByteBuffer payload; // a response spanning several reads
+		private ByteBuffer[] pendingWrites;
+		private int pendingIndex;
+
+		// 是否已经请求 event loop 写出 sendQueue
+		private final AtomicBoolean writeScheduled = new AtomicBoolean();
+
+		public NioConnection(ConnectionID remoteId, ConnectionPool pool,
+				int slot, EventLoop loop) throws IOException {
+			super(remoteId, pool, slot);
+			this.loop = loop;
+		}
+
+		@Override
+		protected Socket newSocket() throws IOException {
+			// 需要 SocketChannel，所以这里不使用 SocketFactory，
+			// 配置了其它 SocketFactory 的 client 不会使用 nio
+			channel = SocketChannel.open();
+			return channel.socket();
+		}
+
+		@Override
+		protected void startIO() throws IOException {
+			channel.configureBlocking(false);
+			DataOutputBuffer header = headerFrame();
+			pendingWrites = new ByteBuffer[] { ByteBuffer.wrap(header.getData(),
+					0, header.getLength()) };
+			pendingIndex = 0;
+			loop.register(this);
+		}
+
+		@Override
+		protected void flushQueued() {
+			if (writeScheduled.compareAndSet(false, true)) {
+				loop.scheduleWrite(this);
+			}
+		}
+
+		@Override
+		protected void closeIO() {
+			if (key != null) {
+				key.cancel();
+			}
+			if (channel != null) {
+				try {
+					channel.close();
+				} catch (IOException e) {
+					LogUtils.log(e);
+				}
+			}
+		}
+
+		@Override
+		protected void wakeupIO() {
+			loop.selector.wakeup();
+		}
+
+		/** Called by the event loop once the channel is registered. */
+		void registered(SelectionKey key) throws IOException {
+			this.key = key;
+			doWrite();
+		}
+
+		/**
+		 * Writes the pending and queued frames with gathering writes, up to
+		 * writeMaxBatch frames at a time, until the queue is empty or the
+		 * socket buffer is full.
+		 */
+		void doWrite() throws IOException {
+			if (key == null) {
+				return; // registered() will write
+			}
+			// 先清除标记再取队列，之后入队的 frame 会再次调度写
+			writeScheduled.set(false);
+			for (;;) {
+				if (pendingWrites == null) {
+					List<ByteBuffer> batch = new ArrayList<ByteBuffer>();
+					DataOutputBuffer frame;
+					while (batch.size() < writeMaxBatch
+							&& (frame = sendQueue.poll()) != null) {
+						batch.add(ByteBuffer.wrap(frame.getData(), 0,
+								frame.getLength()));
+					}
+					if (batch.isEmpty()) {
+						key.interestOps(SelectionKey.OP_READ);
+						return;
+					}
+					pendingWrites = batch.toArray(new ByteBuffer[batch.size()]);
+					pendingIndex = 0;
+				}
+
+				channel.write(pendingWrites, pendingIndex,
+						pendingWrites.length - pendingIndex);
+				while (pendingIndex < pendingWrites.length
+						&& !pendingWrites[pendingIndex].hasRemaining()) {
+					pendingIndex++;
+				}
+				if (pendingIndex < pendingWrites.length) {
+					// socket 缓冲区满了，等可写时再继续
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+				pendingWrites = null;
+			}
+		}
+
+		/**
+		 * Reads what is available into the loop's shared buffer and completes
+		 * every whole response in it.
+		 */
+		void doRead(ByteBuffer readBuffer) throws IOException {
+			readBuffer.clear();
+			int count = channel.read(readBuffer);
+			if (count < 0) {
+				throw new EOFException("Connection to " + server
+						+ " closed by the server");
+			}
+			if (count == 0) {
+				return;
+			}
+			touch();
+			readBuffer.flip();
+
+			while (readBuffer.hasRemaining()) {
+				if (respLength < 0) {
+					if (header.position() == 0
+							&& readBuffer.remaining() >= Server.RESPONSE_HEADER_LENGTH) {
+						respId = readBuffer.getInt();
+						respState = readBuffer.getInt();
+						respLength = readBuffer.getInt();
+					} else {
+						// header 跨越了两次读
+						transfer(readBuffer, header);
+						if (header.hasRemaining()) {
+							break;
+						}
+						header.flip();
+						respId = header.getInt();
+						respState = header.getInt();
+						respLength = header.getInt();
+						header.clear();
+					}
+					if (respLength < 0 || respLength > Server.MAX_DATA_LENGTH) {
+						// 只关闭这一个 connection，不能让 event loop 去分配它
+						throw new IOException("Unexpected response length "
+								+ respLength + " from " + server);
+					}
+				}
+
+				if (payload == null) {
+					if (readBuffer.remaining() >= respLength) {
+						// 整个 response 都在读缓冲区里，直接从中解析
+						int start = readBuffer.position();
+						readBuffer.position(start + respLength);
+						processResponse(readBuffer.array(), start, respLength);
+						continue;
+					}
+					payload = ByteBuffer.allocate(respLength);
+				}
+
+				transfer(readBuffer, payload);
+				if (payload.hasRemaining()) {
+					break;
+				}
+				ByteBuffer whole = payload;
+				payload = null;
+				processResponse(whole.array(), 0, respLength);
+			}
+		}
+
+		/** Move as many bytes as fit from src to dst. */
+		private void transfer(ByteBuffer src, ByteBuffer dst) {
+			int n = Math.min(src.remaining(), dst.remaining());
+			int limit = src.limit();
+			src.limit(src.position() + n);
+			dst.put(src);
+			src.limit(limit);
+		}
+
+		private void processResponse(byte[] data, int off, int len)
+				throws IOException {
+			int id = respId;
+			respLength = -1;
+			if (id == HANDSHAKE_CALL_ID) {
+				completeHandshake(respState, new DataInputStream(
+						new ByteArrayInputStream(data, off, len)));
+				return;
+			}
+			Call call = calls.remove(id);
+			if (call != null) {
+				completeCall(call, id, respState, newInput(
+						new ByteArrayInputStream(data, off, len)));
+			} else if (dictionary != null) {
+				discardValue(respState, newInput(new ByteArrayInputStream(data,
+						off, len)));
+			}
+		}
+	}
+
+	/**
+	 * 多个 {@link NioConnection} 共用的 selector 线程
+	 * 
+	 * 其它线程只通过 registrations 和 writeRequests 两个队列与它交互，
+	 * 然后 wakeup selector。
+	 */
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		private final Thread thread;
+		// 所有 connection 共用的读缓冲区
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		private final ConcurrentLinkedQueue<NioConnection> registrations =
+			new ConcurrentLinkedQueue<NioConnection>();
+		private final ConcurrentLinkedQueue<NioConnection> writeRequests =
+			new ConcurrentLinkedQueue<NioConnection>();
+		// 线程退出之后，register 的一方自己关闭排队的 connection
+		private volatile boolean exited;
+
+		EventLoop(int index) throws IOException {
+			this.selector = Selector.open();
+			this.thread = new Thread(this, "IPC Client (" + sf.hashCode()
+					+ ") event loop #" + index);
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		void register(NioConnection connection) {
+			registrations.add(connection);
+			selector.wakeup();
+			if (exited) {
+				closeRegistrations();
+			}
+		}
+
+		void scheduleWrite(NioConnection connection) {
+			writeRequests.add(connection);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (running.get()) {
+				try {
+					selector.select(SELECT_TIMEOUT);
+
+					NioConnection connection;
+					while ((connection = registrations.poll()) != null) {
+						try {
+							connection.registered(connection.channel.register(
+									selector, SelectionKey.OP_READ, connection));
+						} catch (IOException e) {
+							closeConnection(connection, e);
+						}
+					}
+					while ((connection = writeRequests.poll()) != null) {
+						try {
+							connection.doWrite();
+						} catch (IOException e) {
+							closeConnection(connection, e);
+						}
+					}
+
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						connection = (NioConnection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								connection.doRead(readBuffer);
+							}
+							if (key.isValid() && key.isWritable()) {
+								connection.doWrite();
+							}
+							if (connection.shouldCloseConnection.get()) {
+								// 例如收到了 FATAL response
+								connection.close();
+							}
+						} catch (IOException e) {
+							closeConnection(connection, e);
+						} catch (CancelledKeyException e) {
+							// 已经被其它线程关闭
+						} catch (Throwable t) {
+							// 读到一半的 response 之后无法再拆帧
+							closeConnection(connection, new IOException(
+									"Unexpected error on connection to "
+											+ connection.server, t));
+						}
+					}
+				} catch (IOException e) {
+					LogUtils.log(e);
+				} catch (RuntimeException e) {
+					LogUtils.log(e);
+				}
+			}
+
+			// client 已经停止，关闭剩下的 connection
+			for (SelectionKey key : selector.keys()) {
+				closeConnection((NioConnection) key.attachment(),
+						new IOException("Client is stopped"));
+			}
+			exited = true;
+			closeRegistrations();
+			try {
+				selector.close();
+			} catch (IOException e) {
+				LogUtils.log(e);
+			}
+		}
+
+		/** Close the connections that will never be registered. */
+		private void closeRegistrations() {
+			NioConnection connection;
+			while ((connection = registrations.poll()) != null) {
+				closeConnection(connection, new IOException("Client is stopped"));
+			}
+		}
+
+		private void closeConnection(NioConnection connection, IOException e) {
+			connection.markClosed(e);
+			connection.close();
+		}
+	}
+
 	
 	
 	private SocketFactory sf;
 	private Configuration conf;
 	
-	public Client(SocketFactory sf,
+	/**
+	 * Construct an IPC client whose values are of the given {@link Writable}
+	 * class.
+	 */
+	public Client(Class<? extends Writable> valueClass, SocketFactory sf,
 			Configuration conf) {
 
 	    this.valueClass = valueClass;
 	    this.maxIdleTime = 
 	      conf.getInt("ipc.client.connection.maxidletime", 10000); //10s
 	    this.maxRetries = conf.getInt("ipc.client.connect.max.retries", 10);
+	    this.connectBackoffBase = Math.max(1, conf.getLong(
+	      CONNECT_BACKOFF_BASE_NAME, DEFAULT_CONNECT_BACKOFF_BASE));
+	    this.connectBackoffMax = Math.max(connectBackoffBase, conf.getLong(
+	      CONNECT_BACKOFF_MAX_NAME, DEFAULT_CONNECT_BACKOFF_MAX));
+	    this.connectFailFast = conf.getBoolean(CONNECT_FAIL_FAST_NAME, false);
 	    this.tcpNoDelay = conf.getBoolean("ipc.client.tcpnodelay", false);
 	    this.pingInterval = conf.getInt(PING_INTERVAL_NAME, DEFAULT_PING_INTERVAL);
+	    this.writeMaxDelay = TimeUnit.MICROSECONDS.toNanos(
+	      conf.getInt(WRITE_MAX_DELAY_NAME, DEFAULT_WRITE_MAX_DELAY));
+	    this.writeMaxBatch = Math.max(1,
+	      conf.getInt(WRITE_MAX_BATCH_NAME, DEFAULT_WRITE_MAX_BATCH));
+	    this.poolSize = Math.max(1,
+	      conf.getInt(CONNECTION_POOL_SIZE_NAME, DEFAULT_CONNECTION_POOL_SIZE));
+	    String policy = conf.get(CONNECTION_POOL_POLICY_NAME,
+	      POOL_POLICY_LEAST_OUTSTANDING);
+	    if (POOL_POLICY_THREAD_AFFINITY.equals(policy)) {
+	      this.threadAffinity = true;
+	    } else if (POOL_POLICY_LEAST_OUTSTANDING.equals(policy)) {
+	      this.threadAffinity = false;
+	    } else {
+	      throw new IllegalArgumentException("Unknown "
+	        + CONNECTION_POOL_POLICY_NAME + ": " + policy);
+	    }
+	    String transport = conf.get(TRANSPORT_NAME, TRANSPORT_BLOCKING);
+	    if (TRANSPORT_NIO.equals(transport)) {
+	      this.nioTransport = sf == SocketFactory.getDefault();
+	      if (!nioTransport) {
+	        LogUtils.log("Using the " + TRANSPORT_BLOCKING + " transport, "
+	          + TRANSPORT_NIO + " does not support " + sf.getClass().getName());
+	      }
+	    } else if (TRANSPORT_BLOCKING.equals(transport)) {
+	      this.nioTransport = false;
+	    } else {
+	      throw new IllegalArgumentException("Unknown " + TRANSPORT_NAME + ": "
+	        + transport);
+	    }
+	    this.multiplex = conf.getBoolean(MULTIPLEX_NAME, false);
+	    this.classDictionary = conf.getBoolean(CLASS_DICTIONARY_NAME, false);
+	    this.eventLoopCount = Math.max(1, conf.getInt(EVENT_LOOPS_NAME,
+	      Math.min(4, Runtime.getRuntime().availableProcessors())));
+	    this.callTimeout = conf.getLong(CALL_TIMEOUT_NAME, DEFAULT_CALL_TIMEOUT);
+	    this.maxSpins = Math.max(0, conf.getInt(CALL_SPIN_NAME, DEFAULT_CALL_SPIN));
+	    this.spins = maxSpins;
+	    this.timer = new HashedWheelTimer("IPC Client (" + sf.hashCode()
+	      + ") call timer", TIMER_TICK, TimeUnit.MILLISECONDS,
+	      TIMER_TICKS_PER_WHEEL);
 		
 		this.sf = sf;
 		this.conf = conf;
@@ -444,45 +1860,312 @@ public class Client {
 	}
 
 	
+	/** The default call timeout in milliseconds, 0 for none. */
+	public long getCallTimeout() {
+		return callTimeout;
+	}
+
 	public void incCount() {
 		// TODO Auto-generated method stub
 		
 	}
 
+	/**
+	 * Stop all threads related to this client. No further calls may be made
+	 * using this client.
+	 */
+	public void stop() {
+		if (!running.compareAndSet(true, false)) {
+			return;
+		}
+
+		// 接收线程或 event loop 醒来后会关闭连接
+		for (ConnectionPool pool : connections.values()) {
+			pool.wakeup();
+		}
+
+		timer.stop();
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				connectors.shutdownNow();
+			}
+		}
+
+		// wait until all connections are closed
+		synchronized (closeLock) {
+			while (!allConnectionsClosed()) {
+				try {
+					closeLock.wait();
+				} catch (InterruptedException e) {
+				}
+			}
+		}
+	}
+
+	private final Function<ConnectionID, ConnectionPool> newPool =
+		new Function<ConnectionID, ConnectionPool>() {
+			public ConnectionPool apply(ConnectionID remoteId) {
+				return new ConnectionPool(remoteId, poolSize);
+			}
+		};
+
+	/** Create a connection of the configured transport. */
+	private Connection newConnection(ConnectionID remoteId, ConnectionPool pool,
+			int slot) throws IOException {
+		startScheduler();
+		if (nioTransport) {
+			return new NioConnection(remoteId, pool, slot, nextEventLoop());
+		}
+		return new BlockingConnection(remoteId, pool, slot);
+	}
+
+	/** Pick an event loop round robin, starting the loops on first use. */
+	private synchronized EventLoop nextEventLoop() throws IOException {
+		if (eventLoops == null) {
+			EventLoop[] loops = new EventLoop[eventLoopCount];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new EventLoop(i);
+			}
+			eventLoops = loops;
+		}
+		return eventLoops[(nextEventLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% eventLoops.length];
+	}
+
+	/**
+	 * Start the thread that does the client's periodic work, unless it is
+	 * already running. Only called when a connection is created, so calls
+	 * never pay for it.
+	 */
+	private synchronized void startScheduler() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "IPC Client (" + sf.hashCode()
+								+ ") scheduler");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		// connect 会阻塞，所以不放在 scheduler 线程中做
+		connectors = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "IPC Client (" + sf.hashCode()
+						+ ") connector #" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+		// 每隔 maxIdleTime 的一半检查一次，所以空闲的 connection
+		// 最多在 1.5 倍 maxIdleTime 之后被关闭
+		long period = Math.max(100, maxIdleTime / 2);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				reapIdleConnections();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+
+		// 同理，没有收到数据的 connection 最迟在 1.5 倍 pingInterval 之后 ping
+		long heartbeatPeriod = Math.max(100, pingInterval / 2);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				heartbeat();
+			}
+		}, heartbeatPeriod, heartbeatPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/** Ping the connections that have pending calls but have gone quiet. */
+	private void heartbeat() {
+		long now = System.currentTimeMillis();
+		for (ConnectionPool pool : connections.values()) {
+			pool.heartbeat(now);
+		}
+	}
+
+	/**
+	 * Close every connection that has had no pending calls and no I/O for
+	 * maxIdleTime.
+	 */
+	private void reapIdleConnections() {
+		long now = System.currentTimeMillis();
+		for (ConnectionPool pool : connections.values()) {
+			pool.closeIdle(now);
+			pool.retireIfEmpty();
+		}
+	}
+
+	private boolean allConnectionsClosed() {
+		for (ConnectionPool pool : connections.values()) {
+			if (!pool.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public Writable call(Writable invocation, InetSocketAddress address,
 			Class<?> protocol) throws InterruptedException, IOException{
+		return call(invocation, address, protocol, callTimeout);
+	}
+
+	/**
+	 * Make a call that fails with a {@link SocketTimeoutException} if no
+	 * response arrives within <code>timeout</code> milliseconds.
+	 * 
+	 * @param timeout timeout in milliseconds, 0 for none
+	 */
+	public Writable call(Writable invocation, InetSocketAddress address,
+			Class<?> protocol, long timeout) throws InterruptedException,
+			IOException {
+		return call(invocation, new ConnectionID(address, protocol), timeout);
+	}
+
+	/**
+	 * Make a call to the server and protocol identified by
+	 * <code>remoteId</code>. Callers that make many calls to the same server
+	 * should keep the ConnectionID rather than pass the address every time.
+	 * 
+	 * @param timeout timeout in milliseconds, 0 for none
+	 */
+	public Writable call(Writable invocation, ConnectionID remoteId,
+			long timeout) throws InterruptedException, IOException {
+		InetSocketAddress address = remoteId.getAddress();
 	
 		//构造call，发送请求
 		Call call = new Call(invocation);
-		Connection connection = getConnection(address, protocol, call);
+		Connection connection = getConnection(remoteId, call);
+		scheduleTimeout(connection, call, timeout);
 		connection.sendParam(call);
 		
-		//轮询等待结果
-		boolean interrupted = false;
-		synchronized (call) {
-			while(!call.done){
-				try{
-					call.wait();
-				}catch(InterruptedException ie){
-					interrupted = true;
-				}
-			}
+		//等待结果
+		call.waitForCompletion();
 			
-			if(interrupted){
-				Thread.currentThread().interrupt();
+		//获取结果返回,处理进行返回
+		if(call.error != null){
+			if(call.error instanceof RemoteException){
+				call.error.fillInStackTrace();
+				throw call.error;
+			} else if (call.error instanceof ServerBusyException) {
+				// 服务端没有执行这个call，保持原有类型以便调用者重试
+				call.error.fillInStackTrace();
+				throw call.error;
+			} else {
+				throw wrapException(address, call.error);
 			}
-			
-			//获取结果返回,处理进行返回
-			if(call.error != null){
-				if(call.error instanceof RemoteException){
-					call.error.fillInStackTrace();
-					throw call.error;
-				} else {
-					throw wrapException(address, call.error);
-				}
-			}else{
-				return call.value;
+		}else{
+			return call.value;
+		}
+	}
+
+	/**
+	 * Make a call without blocking the calling thread. The returned future is
+	 * completed with the value, or exceptionally with the same exceptions
+	 * {@link #call(Writable, InetSocketAddress, Class)} would throw.
+	 */
+	public CompletableFuture<Writable> callAsync(Writable invocation,
+			InetSocketAddress address, Class<?> protocol) {
+		return callAsync(invocation, address, protocol, callTimeout);
+	}
+
+	/**
+	 * Make an asynchronous call with a timeout in milliseconds, 0 for none.
+	 * Cancelling the returned future abandons the call.
+	 */
+	public CompletableFuture<Writable> callAsync(Writable invocation,
+			InetSocketAddress address, Class<?> protocol, long timeout) {
+		return callAsync(invocation, new ConnectionID(address, protocol),
+				timeout);
+	}
+
+	/**
+	 * Make an asynchronous call to the server and protocol identified by
+	 * <code>remoteId</code>, with a timeout in milliseconds, 0 for none.
+	 */
+	public CompletableFuture<Writable> callAsync(Writable invocation,
+			ConnectionID remoteId, long timeout) {
+		AsyncCall call = new AsyncCall(invocation, remoteId.getAddress());
+		try {
+			Connection connection = getConnection(remoteId, call);
+			scheduleTimeout(connection, call, timeout);
+			connection.sendParam(call);
+		} catch (IOException e) {
+			call.setException(e);
+		}
+		return call.future;
+	}
+
+	/**
+	 * The server's version of the protocol for <code>remoteId</code>, which
+	 * must carry a client version. The version comes with the handshake of
+	 * every new connection and is remembered, so only the first request for
+	 * a ConnectionID waits for the network.
+	 * 
+	 * @throws RemoteException if the server could not tell its version
+	 */
+	public long getProtocolVersion(ConnectionID remoteId)
+			throws InterruptedException, IOException {
+		Long version = serverVersions.get(remoteId);
+		if (version != null) {
+			return version;
+		}
+		if (remoteId.getClientVersion() == ConnectionHeader.UNKNOWN_VERSION) {
+			throw new IllegalArgumentException("No client version for "
+					+ remoteId.getProtocol() + " at " + remoteId.getAddress());
+		}
+
+		// 占住一个 call 的位置，等待期间 connection 不会被当作空闲关闭
+		Call call = new Call(null);
+		Connection connection = getConnection(remoteId, call);
+		try {
+			CompletableFuture<Long> handshake = connection
+					.defineProtocol(remoteId).handshake;
+			if (callTimeout > 0) {
+				return handshake.get(callTimeout, TimeUnit.MILLISECONDS);
+			}
+			return handshake.get();
+		} catch (TimeoutException e) {
+			throw new SocketTimeoutException("No handshake from "
+					+ remoteId.getAddress() + " in " + callTimeout + " ms");
+		} catch (ExecutionException e) {
+			IOException cause = (IOException) e.getCause();
+			if (cause instanceof RemoteException) {
+				throw cause;
 			}
+			throw wrapException(remoteId.getAddress(), cause);
+		} finally {
+			connection.calls.remove(call);
+		}
+	}
+
+	/**
+	 * Put the call's deadline on the timer wheel. An expired call is taken
+	 * out of its connection's call table, so its late response is skipped.
+	 * 
+	 * @throws IOException if the client has been stopped; the call is then
+	 *         taken out of the connection's call table again
+	 */
+	private void scheduleTimeout(Connection connection, final Call call,
+			final long timeout) throws IOException {
+		if (timeout <= 0) {
+			return;
+		}
+		try {
+			call.timeout = timer.newTimeout(new Runnable() {
+				public void run() {
+					call.expire(timeout);
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+		} catch (IllegalStateException e) {
+			// stop() 已经停止了 timer；call 留在表中会让 connection 永远不空闲
+			connection.calls.remove(call);
+			throw new IOException("Client is stopped", e);
 		}
 	}
 
@@ -517,23 +2200,49 @@ public class Client {
 	    }
 	  }
 
-	private Connection getConnection(InetSocketAddress address, 
-			Class<?> protocol, Call call) throws IOException{
+	private Connection getConnection(ConnectionID cID, Call call)
+			throws IOException{
 		
 		Connection connection = null;
-		ConnectionID cID = new ConnectionID(address, protocol);
+		// 多路复用时同一个地址的所有协议共用一组 connection
+		ConnectionID key = multiplex ? cID.multiplexed() : cID;
+		// 先 get：computeIfAbsent 即使 key 已经存在也可能锁住所在的 bin
+		ConnectionPool pool = connections.get(key);
+		if (pool == null) {
+			pool = connections.computeIfAbsent(key, newPool);
+		}
 		
 		do{
-			synchronized (connections) {
-				connection = connections.get(cID);
-				if(connection == null){
-					connection = new Connection(cID);
-					connections.put(cID, connection);
-				}
+			connection = pool.get(pool.pickSlot());
+			if (connection == null) {
+				// pool 刚被 reaper 移除了，换一个新的
+				pool = connections.computeIfAbsent(key, newPool);
+				continue;
 			}
 			
-			//什么情况下，需要不断反复的进行调用
-		} while (connection.addCall(call));
+			// connection 已经关闭但还没有从 pool 中移除时，addCall 会失败，
+			// 这时把它移除并重新建一个
+			if (connection.addCall(call)) {
+				call.connection = connection;
+				IOException down = connection.getConnectFailure();
+				if (connectFailFast && down != null && connection.calls.remove(call)) {
+					// 正在重连，不让调用者等待
+					throw (IOException) new ConnectException("Connection to "
+							+ cID.getAddress() + " is down: " + down)
+							.initCause(down);
+				}
+				if (multiplex) {
+					try {
+						call.protocolId = connection.defineProtocol(cID).id;
+					} catch (IOException e) {
+						connection.calls.remove(call);
+						throw e;
+					}
+				}
+				break;
+			}
+			pool.remove(connection);
+		} while (true);
 		
 		connection.setupIOStream();
 		return connection;
@@ -3,24 +3,96 @@ package java.wody.ipc;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.wody.io.UTF8;
 import java.wody.io.Writable;
 
+/**
+ * 每个connection建立时，客户端在 {@link Server#HEADER} 与版本号之后
+ * 发送的连接头，包含该连接所使用的协议名以及客户端的协议版本
+ * 
+ * 带有版本时，server 在连接上先回一个 {@link Client#HANDSHAKE_CALL_ID}
+ * 的 response，其中是 server 的协议版本，客户端因此不需要再单独调用一次
+ * {@link VersionedProtocol#getProtocolVersion}
+ * 
+ * 多路复用的连接不带协议名，每个协议在第一次使用前用一个
+ * {@link Client#PROTOCOL_DEF_CALL_ID} frame 定义，之后每个 call 都带上协议 id
+ * 
+ * 要求使用 {@link java.wody.io.ClassDictionary} 时，两个方向上的
+ * ObjectWritable 类名都通过连接的字典编码
+ */
 public class ConnectionHeader implements Writable {
 
+	/** The client did not send a version and expects no handshake. */
+	public static final long UNKNOWN_VERSION = -1;
+
+	private String protocol;
+	private long clientVersion = UNKNOWN_VERSION;
+	private boolean multiplexed;
+	private boolean classDictionary;
+
+	public ConnectionHeader() {
+	}
+
 	public ConnectionHeader(String protocol) {
-		// TODO Auto-generated constructor stub
+		this(protocol, UNKNOWN_VERSION);
+	}
+
+	public ConnectionHeader(String protocol, long clientVersion) {
+		this.protocol = protocol;
+		this.clientVersion = clientVersion;
+	}
+
+	/** The header of a connection that carries calls of many protocols. */
+	public static ConnectionHeader multiplexed() {
+		ConnectionHeader header = new ConnectionHeader();
+		header.multiplexed = true;
+		return header;
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		// TODO Auto-generated method stub
-
+		protocol = UTF8.readString(in);
+		if (protocol.length() == 0) {
+			protocol = null;
+		}
+		clientVersion = in.readLong();
+		multiplexed = in.readBoolean();
+		classDictionary = in.readBoolean();
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
-		// TODO Auto-generated method stub
+		UTF8.writeString(out, (protocol == null) ? "" : protocol);
+		out.writeLong(clientVersion);
+		out.writeBoolean(multiplexed);
+		out.writeBoolean(classDictionary);
+	}
+
+	public String getProtocol() {
+		return protocol;
+	}
+
+	public long getClientVersion() {
+		return clientVersion;
+	}
+
+	public boolean isMultiplexed() {
+		return multiplexed;
+	}
+
+	public boolean usesClassDictionary() {
+		return classDictionary;
+	}
+
+	public void setClassDictionary(boolean classDictionary) {
+		this.classDictionary = classDictionary;
+	}
 
+	public String toString() {
+		if (multiplexed) {
+			return "multiplexed";
+		}
+		return protocol + " version " + clientVersion;
 	}
 
 }
@@ -0,0 +1,237 @@
+package java.wody.ipc;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.wody.conf.Configuration;
+
+/**
+ * 按调用者公平调度的多级 call 队列
+ *
+ * <p>每个 call 根据其调用者最近的调用量被放入某一级队列：调用量占比越高，
+ * 级别越低（数字越大）。handler 按权重在各级之间轮转取 call，
+ * 默认权重为 8:4:2:1，这样一个频繁调用的客户端不会饿死其它客户端。
+ *
+ * <p>调用量每隔 {@link #DECAY_PERIOD_NAME} 减半，所以一个调用者在安静下来之后
+ * 会逐渐回到高优先级。
+ *
+ * <p>各级队列本身是无锁的 {@link ConcurrentLinkedQueue}，调用量计数放在
+ * {@link ConcurrentHashMap} 中的 {@link AtomicLong} 里，容量与等待则由两个
+ * {@link Semaphore} 控制，因此调度本身不会成为新的瓶颈。
+ */
+public class FairCallQueue<E extends Schedulable> implements CallQueue<E> {
+
+	/** Number of priority levels. */
+	public static final String LEVELS_NAME = "ipc.server.callqueue.fair.levels";
+	public static final int DEFAULT_LEVELS = 4;
+	// 默认权重逐级减半，级数再多调度序列就太长了
+	private static final int MAX_LEVELS = 16;
+
+	/**
+	 * Comma separated handler weights of the levels, highest priority first.
+	 * Defaults to halving the weight on every level, e.g. 8,4,2,1.
+	 */
+	public static final String WEIGHTS_NAME = "ipc.server.callqueue.fair.weights";
+
+	/** How often, in msecs, the per-caller call counts are halved. */
+	public static final String DECAY_PERIOD_NAME = "ipc.server.callqueue.fair.decay.period.ms";
+	public static final long DEFAULT_DECAY_PERIOD = 5000;
+
+	private final ConcurrentLinkedQueue<E>[] queues;
+
+	// 一个 call 占用一个 slot，被 take 之后归还；items 则是可以 take 的 call 数
+	private final Semaphore slots;
+	private final Semaphore items = new Semaphore(0);
+
+	// handler 按这个序列轮转各级队列，序列中每一级出现的次数等于其权重
+	private final int[] schedule;
+	private final AtomicInteger scheduleIndex = new AtomicInteger();
+
+	// 调用者最近的调用量，以及所有调用者的总量
+	private final ConcurrentHashMap<Object, AtomicLong> callCounts =
+		new ConcurrentHashMap<Object, AtomicLong>();
+	private final AtomicLong totalCalls = new AtomicLong();
+	// 调用量占比达到 thresholds[i] 的调用者至少被放在第 i + 1 级
+	private final double[] thresholds;
+
+	private final long decayPeriod;
+	private final AtomicLong nextDecayTime;
+
+	@SuppressWarnings("unchecked")
+	public FairCallQueue(int capacity, Configuration conf) {
+		int levels = conf.getInt(LEVELS_NAME, DEFAULT_LEVELS);
+		if (levels < 1 || levels > MAX_LEVELS) {
+			throw new IllegalArgumentException(LEVELS_NAME + " must be between 1 and "
+					+ MAX_LEVELS + ": " + levels);
+		}
+
+		this.queues = (ConcurrentLinkedQueue<E>[]) new ConcurrentLinkedQueue<?>[levels];
+		for (int i = 0; i < levels; i++) {
+			queues[i] = new ConcurrentLinkedQueue<E>();
+		}
+		this.slots = new Semaphore(capacity);
+		this.schedule = buildSchedule(parseWeights(conf.get(WEIGHTS_NAME), levels));
+
+		// 4 级时为 1/8, 1/4, 1/2
+		this.thresholds = new double[levels - 1];
+		for (int i = 0; i < thresholds.length; i++) {
+			thresholds[i] = 1.0 / (1L << (thresholds.length - i));
+		}
+
+		this.decayPeriod = conf.getLong(DECAY_PERIOD_NAME, DEFAULT_DECAY_PERIOD);
+		this.nextDecayTime = new AtomicLong(System.currentTimeMillis()
+				+ decayPeriod);
+	}
+
+	private static int[] parseWeights(String value, int levels) {
+		int[] weights = new int[levels];
+		if (value == null) {
+			for (int i = 0; i < levels; i++) {
+				weights[i] = 1 << Math.min(levels - 1 - i, 30);
+			}
+			return weights;
+		}
+
+		String[] parts = value.split(",");
+		if (parts.length != levels) {
+			throw new IllegalArgumentException(WEIGHTS_NAME + " needs " + levels
+					+ " weights: " + value);
+		}
+		for (int i = 0; i < levels; i++) {
+			weights[i] = Integer.parseInt(parts[i].trim());
+			if (weights[i] < 1) {
+				throw new IllegalArgumentException(WEIGHTS_NAME
+						+ " must be positive: " + value);
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * Interleaves the levels according to their weights, so 4,2,1 becomes
+	 * 0,1,2,0,1,0,0 rather than handing out a whole burst of one level.
+	 */
+	private static int[] buildSchedule(int[] weights) {
+		int total = 0;
+		int maxWeight = 0;
+		for (int weight : weights) {
+			total += weight;
+			maxWeight = Math.max(maxWeight, weight);
+		}
+		int[] schedule = new int[total];
+		int n = 0;
+		for (int round = 0; round < maxWeight; round++) {
+			for (int level = 0; level < weights.length; level++) {
+				if (weights[level] > round) {
+					schedule[n++] = level;
+				}
+			}
+		}
+		return schedule;
+	}
+
+	public void put(E call) throws InterruptedException {
+		slots.acquire();
+		enqueue(call);
+	}
+
+	public boolean offer(E call) {
+		if (!slots.tryAcquire()) {
+			return false;
+		}
+		enqueue(call);
+		return true;
+	}
+
+	private void enqueue(E call) {
+		queues[getPriorityLevel(call)].add(call);
+		items.release();
+	}
+
+	public E take() throws InterruptedException {
+		items.acquire();
+		// 拿到了 permit 就说明某一级队列中一定有一个属于我们的 call，
+		// 但它可能被别的 handler 先取走而由另一级中新来的 call 补上，所以要循环
+		E call;
+		while ((call = poll()) == null) {
+			Thread.yield();
+		}
+		slots.release();
+		return call;
+	}
+
+	/** Polls the levels, starting at the next one in the weighted schedule. */
+	private E poll() {
+		int start = schedule[(scheduleIndex.getAndIncrement() & Integer.MAX_VALUE)
+				% schedule.length];
+		for (int i = 0; i < queues.length; i++) {
+			E call = queues[(start + i) % queues.length].poll();
+			if (call != null) {
+				return call;
+			}
+		}
+		return null;
+	}
+
+	public int size() {
+		return items.availablePermits();
+	}
+
+	/**
+	 * Counts the call against its caller and maps the caller's share of the
+	 * recent calls onto a level.
+	 */
+	int getPriorityLevel(Schedulable call) {
+		maybeDecay();
+
+		Object caller = call.getCallerIdentity();
+		AtomicLong count = callCounts.get(caller);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = callCounts.putIfAbsent(caller, newCount);
+			if (count == null) {
+				count = newCount;
+			}
+		}
+		long callerCalls = count.incrementAndGet();
+		long allCalls = totalCalls.incrementAndGet();
+
+		double share = (double) callerCalls / allCalls;
+		int level = 0;
+		while (level < thresholds.length && share >= thresholds[level]) {
+			level++;
+		}
+		return level;
+	}
+
+	/**
+	 * Halves all call counts once per decay period. Whichever enqueuing thread
+	 * first notices the period is over does the work, so no extra thread is
+	 * needed.
+	 */
+	private void maybeDecay() {
+		long next = nextDecayTime.get();
+		long now = System.currentTimeMillis();
+		if (now < next || !nextDecayTime.compareAndSet(next, now + decayPeriod)) {
+			return;
+		}
+
+		long total = totalCalls.get();
+		totalCalls.addAndGet((total >> 1) - total);
+
+		Iterator<Map.Entry<Object, AtomicLong>> it = callCounts.entrySet()
+				.iterator();
+		while (it.hasNext()) {
+			AtomicLong count = it.next().getValue();
+			long calls = count.get();
+			if (count.addAndGet((calls >> 1) - calls) <= 0) {
+				it.remove();
+			}
+		}
+	}
+
+}
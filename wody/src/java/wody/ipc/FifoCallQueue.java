@@ -0,0 +1,34 @@
+package java.wody.ipc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.wody.conf.Configuration;
+
+/**
+ * 默认的 call 队列，所有调用者共享一个 FIFO 队列
+ */
+public class FifoCallQueue<E extends Schedulable> implements CallQueue<E> {
+
+	private final BlockingQueue<E> queue;
+
+	public FifoCallQueue(int capacity, Configuration conf) {
+		this.queue = new LinkedBlockingQueue<E>(capacity);
+	}
+
+	public void put(E call) throws InterruptedException {
+		queue.put(call);
+	}
+
+	public boolean offer(E call) {
+		return queue.offer(call);
+	}
+
+	public E take() throws InterruptedException {
+		return queue.take();
+	}
+
+	public int size() {
+		return queue.size();
+	}
+
+}
@@ -0,0 +1,177 @@
+package java.wody.ipc;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 服务端的方法分派表
+ * 
+ * 注册协议实现时，把协议接口的每一个方法按 (方法名, 参数类型) 预先解析成
+ * 绑定到该实例的 {@link MethodHandle}。处理 call 时只需要一次 hash 查找、
+ * 一次参数类型数组的比较以及一次直接调用，不再每次反射查找 {@link Method}，
+ * 也没有 Method.invoke 的参数检查与包装
+ */
+class MethodDispatcher {
+
+	private static final MethodType INVOKER_TYPE = MethodType.methodType(
+			Object.class, Object[].class);
+
+	/** A method that can be called remotely. */
+	static final class Entry {
+		private final Class<?>[] paramClasses;
+		private final Class<?> returnType;
+		// 返回 CompletionStage 的方法，结果在 future 完成后才发送
+		private final boolean async;
+		// (Object[])Object, already bound to the instance
+		private final MethodHandle invoker;
+
+		Entry(Object instance, Method method) throws IllegalAccessException {
+			this.paramClasses = method.getParameterTypes();
+			this.async = CompletionStage.class.isAssignableFrom(method
+					.getReturnType());
+			this.returnType = async ? resultType(method) : method
+					.getReturnType();
+			// the implementation class itself may not be public
+			method.setAccessible(true);
+			this.invoker = MethodHandles.lookup().unreflect(method)
+					.bindTo(instance)
+					.asSpreader(Object[].class, paramClasses.length)
+					.asType(INVOKER_TYPE);
+		}
+
+		/**
+		 * The class the result is sent as. For asynchronous methods this is
+		 * the type argument of the returned future, or null if it can't be
+		 * told from the method's signature.
+		 */
+		public Class<?> getReturnType() {
+			return returnType;
+		}
+
+		/** True if the method returns a {@link CompletionStage}. */
+		public boolean isAsync() {
+			return async;
+		}
+
+		/**
+		 * Calls the method. Whatever the method throws is thrown as is, it is
+		 * not wrapped like with {@link Method#invoke}.
+		 */
+		public Object invoke(Object[] parameters) throws Throwable {
+			return (Object) invoker.invokeExact(parameters);
+		}
+	}
+
+	/**
+	 * The <code>T</code> of a method returning
+	 * <code>CompletableFuture&lt;T&gt;</code>; <code>Void</code> is sent like
+	 * a void method's result.
+	 */
+	private static Class<?> resultType(Method method) {
+		Type type = method.getGenericReturnType();
+		if (!(type instanceof ParameterizedType)) {
+			return null;
+		}
+		Type arg = ((ParameterizedType) type).getActualTypeArguments()[0];
+		if (arg instanceof ParameterizedType) {
+			arg = ((ParameterizedType) arg).getRawType();
+		}
+		if (arg == Void.class) {
+			return Void.TYPE;
+		}
+		return (arg instanceof Class) ? (Class<?>) arg : null;
+	}
+
+	private final Object instance;
+	// 方法名 -> 所有重载
+	private final Map<String, Entry[]> entries = new HashMap<String, Entry[]>();
+
+	/** Dispatches to the methods of every interface the instance implements. */
+	MethodDispatcher(Object instance) {
+		this(instance, interfacesOf(instance.getClass()));
+	}
+
+	/** Dispatches to the methods of the given protocol interfaces only. */
+	MethodDispatcher(Object instance, Class<?>... protocols) {
+		this.instance = instance;
+		Map<String, List<Entry>> byName = new HashMap<String, List<Entry>>();
+		for (Class<?> protocol : protocols) {
+			for (Method method : protocol.getMethods()) {
+				// 静态方法不能绑定到实例，也不是协议的一部分
+				if (Modifier.isStatic(method.getModifiers())) {
+					continue;
+				}
+				List<Entry> overloads = byName.get(method.getName());
+				if (overloads == null) {
+					overloads = new ArrayList<Entry>(1);
+					byName.put(method.getName(), overloads);
+				}
+				if (contains(overloads, method.getParameterTypes())) {
+					continue; // 多个接口声明了同一个方法
+				}
+				try {
+					overloads.add(new Entry(instance, method));
+				} catch (IllegalAccessException e) {
+					throw new IllegalArgumentException("Can't dispatch to " + method, e);
+				}
+			}
+		}
+		for (Map.Entry<String, List<Entry>> e : byName.entrySet()) {
+			entries.put(e.getKey(), e.getValue().toArray(new Entry[e.getValue().size()]));
+		}
+	}
+
+	/** All interfaces implemented by the class or its superclasses. */
+	private static Class<?>[] interfacesOf(Class<?> c) {
+		Set<Class<?>> interfaces = new LinkedHashSet<Class<?>>();
+		for (; c != null; c = c.getSuperclass()) {
+			interfaces.addAll(Arrays.asList(c.getInterfaces()));
+		}
+		return interfaces.toArray(new Class<?>[interfaces.size()]);
+	}
+
+	private static boolean contains(List<Entry> overloads, Class<?>[] paramClasses) {
+		for (Entry entry : overloads) {
+			if (Arrays.equals(entry.paramClasses, paramClasses)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** The instance the methods are bound to. */
+	Object getInstance() {
+		return instance;
+	}
+
+	/**
+	 * Finds the method with exactly this name and these parameter classes.
+	 * 
+	 * @return the method, or null if the instance has no such method
+	 */
+	Entry lookup(String methodName, Class<?>[] paramClasses) {
+		Entry[] overloads = entries.get(methodName);
+		if (overloads != null) {
+			for (Entry entry : overloads) {
+				if (Arrays.equals(entry.paramClasses, paramClasses)) {
+					return entry;
+				}
+			}
+		}
+		return null;
+	}
+
+}
@@ -3,12 +3,18 @@ package java.wody.ipc;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.wody.LogUtils;
 import java.wody.conf.Configurable;
 import java.wody.conf.Configuration;
 import java.wody.io.ObjectWritable;
@@ -32,7 +38,8 @@ public class RPC {
 		public Invocation(Method method, Object[] args) {
 			this.methodName = method.getName();
 			this.paramClasses = method.getParameterTypes();
-			this.parameters = args;
+			// 没有参数的方法，代理传进来的 args 是 null
+			this.parameters = args == null ? new Object[0] : args;
 		}
 
 		public String getMethodName() {
@@ -104,18 +111,24 @@ public class RPC {
 	
 	private static class ClientCache {
 		
-		private Map<SocketFactory, Client> clients = 
-			new HashMap<SocketFactory, Client>();
+		private ConcurrentHashMap<SocketFactory, Client> clients = 
+			new ConcurrentHashMap<SocketFactory, Client>();
 		
 		//FIXME to find out why InetAddress is not used 
 		//and what is socketfactory
-		public synchronized Client getClient(SocketFactory sf, 
-				Configuration conf){
+		public Client getClient(SocketFactory sf, 
+				final Configuration conf){
 			
 			Client client = clients.get(sf);
 			if(client == null){
-				client = new Client(sf, conf);
-				clients.put(sf, client);
+				// 每个 SocketFactory 只会建一个 client
+				client = clients.computeIfAbsent(sf,
+						new Function<SocketFactory, Client>() {
+							public Client apply(SocketFactory factory) {
+								return new Client(ObjectWritable.class,
+										factory, conf);
+							}
+						});
 			} else {
 				client.incCount();
 			}
@@ -123,7 +136,7 @@ public class RPC {
 			return client;
 		}
 		
-		public synchronized Client getClient(Configuration conf){
+		public Client getClient(Configuration conf){
 			return getClient(SocketFactory.getDefault(), conf);
 		}
 	}
@@ -132,51 +145,104 @@ public class RPC {
 
 	private static class Invoker implements InvocationHandler {
 
-		private InetSocketAddress address;
-		private Configuration config;
-		private SocketFactory factory;
+		private static final Function<Writable, Object> UNWRAP =
+			new Function<Writable, Object>() {
+				public Object apply(Writable value) {
+					return ((ObjectWritable) value).get();
+				}
+			};
 
-		public Invoker(InetSocketAddress address, Configuration config,
-				SocketFactory factory) {
-			this.address = address;
-			this.config = config;
-			this.factory = factory;
+		// client 与 ConnectionID 在建立代理时确定，之后的 call 不再查找
+		private final Client client;
+		private final Client.ConnectionID remoteId;
+
+		// 每个方法是否异步以及超时时间，只在第一次调用时通过反射获取
+		private final ConcurrentHashMap<Method, MethodInfo> methods =
+			new ConcurrentHashMap<Method, MethodInfo>();
+
+		public Invoker(Class<?> protocol, InetSocketAddress address,
+				Configuration config, SocketFactory factory, long clientVersion) {
+			this.client = CLIENTS.getClient(factory, config);
+			this.remoteId = new Client.ConnectionID(address, protocol,
+					clientVersion);
+		}
+
+		/** The server's version, from the connection handshake. */
+		long getServerVersion() throws IOException {
+			try {
+				return client.getProtocolVersion(remoteId);
+			} catch (InterruptedException e) {
+				throw (IOException) new InterruptedIOException(
+						"Interrupted waiting for the handshake").initCause(e);
+			}
 		}
 
 		@Override
 		public Object invoke(Object proxy, Method method, Object[] args)
 				throws Throwable {
-			
-			long start = System.currentTimeMillis();
-			
 			// 把 method 与 args 封装成输入后，通过client进行发送
 			Invocation invocation = new Invocation(method, args);
-			Client client = CLIENTS.getClient(factory, config);
-			ObjectWritable result = (ObjectWritable) client.call(invocation, 
-					address, method.getDeclaringClass());
-			
-			long end = System.currentTimeMillis();
-			System.out.println("{Invoker.invoke} method " + method.getName()
-					+ " takes " + (end - start) + " ms");
+
+			MethodInfo info = methods.get(method);
+			if (info == null) {
+				info = new MethodInfo(method);
+				methods.putIfAbsent(method, info);
+			}
+			long timeout = info.timeout >= 0 ? info.timeout : client
+					.getCallTimeout();
+
+			if (info.async) {
+				// 不等待结果，由 future 把 ObjectWritable 转成真正的返回值
+				return client.callAsync(invocation, remoteId, timeout)
+						.thenApply(UNWRAP);
+			}
+
+			ObjectWritable result = (ObjectWritable) client.call(invocation,
+					remoteId, timeout);
 			return result.get();
 		}
+
+		private static class MethodInfo {
+
+			final boolean async;
+			final long timeout; // -1 to use the client's default
+
+			MethodInfo(Method method) {
+				this.async = isAsync(method);
+				CallTimeout callTimeout = method.getAnnotation(CallTimeout.class);
+				this.timeout = callTimeout == null ? -1 : callTimeout.value();
+			}
+		}
+
+		/**
+		 * True if the method returns a {@link CompletableFuture}, or a
+		 * {@link CompletionStage} that a CompletableFuture can stand in for.
+		 */
+		private static boolean isAsync(Method method) {
+			Class<?> returnType = method.getReturnType();
+			return CompletionStage.class.isAssignableFrom(returnType)
+					&& returnType.isAssignableFrom(CompletableFuture.class);
+		}
 	}
 
 	/**
 	 * 客户端获取远程代理
 	 * 
+	 * 客户端版本随 ConnectionHeader 发送，server 的版本在连接的握手中返回，
+	 * 并按 (address, protocol) 缓存在 client 中，所以之后的 getProxy
+	 * 不再需要任何网络往返
 	 */
 	public static VersionedProtocol getProxy(Class<?> protocol,
 			InetSocketAddress address, Configuration config,
 			SocketFactory factory, long clientVersion) throws IOException {
 
-		Invoker invoker = new Invoker(address, config, factory);
+		Invoker invoker = new Invoker(protocol, address, config, factory,
+				clientVersion);
 
 		VersionedProtocol vp = (VersionedProtocol) Proxy.newProxyInstance(
 				protocol.getClassLoader(), new Class[] { protocol }, invoker);
 
-		long serverVersion = vp.getProtocolVersion(protocol.getName(),
-				clientVersion);
+		long serverVersion = invoker.getServerVersion();
 		if (serverVersion == clientVersion) {
 			return vp;
 		} else {
@@ -185,12 +251,190 @@ public class RPC {
 		}
 	}
 
-	// FIXME
-	public static Server getServer(Object object) {
-		return null;
+	/**
+	 * Construct a server for a protocol implementation instance listening on
+	 * a port and address.
+	 */
+	public static Server getServer(final Object instance,
+			final String bindAddress, final int port, Configuration conf)
+			throws IOException {
+		return getServer(instance, bindAddress, port, 1, false, conf);
+	}
+
+	/**
+	 * Construct a server for a protocol implementation instance listening on
+	 * a port and address. The server engine is chosen by
+	 * {@link java.wody.ipc.Server#ENGINE_NAME} in <code>conf</code>.
+	 */
+	public static Server getServer(final Object instance,
+			final String bindAddress, final int port, final int numHandlers,
+			final boolean verbose, Configuration conf) throws IOException {
+		return new Server(instance, conf, bindAddress, port, numHandlers,
+				verbose);
 	}
-	
-	
+
+	/** An RPC Server. */
+	public static class Server extends java.wody.ipc.Server {
+
+		private MethodDispatcher dispatcher;
+		// addProtocol 注册的协议名 -> 实现，其它协议的 call 交给 dispatcher
+		private final ConcurrentHashMap<String, MethodDispatcher> protocols =
+			new ConcurrentHashMap<String, MethodDispatcher>();
+		private boolean verbose;
+
+		/**
+		 * Construct an RPC server.
+		 * 
+		 * @param instance the instance whose methods will be called
+		 * @param conf the configuration to use
+		 * @param bindAddress the address to bind on to listen for connection
+		 * @param port the port to listen for connections on
+		 */
+		public Server(Object instance, Configuration conf, String bindAddress,
+				int port) throws IOException {
+			this(instance, conf, bindAddress, port, 1, false);
+		}
+
+		private static String classNameBase(String className) {
+			String[] names = className.split("\\.", -1);
+			if (names == null || names.length == 0) {
+				return className;
+			}
+			return names[names.length - 1];
+		}
+
+		/**
+		 * Construct an RPC server.
+		 * 
+		 * @param instance the instance whose methods will be called
+		 * @param conf the configuration to use
+		 * @param bindAddress the address to bind on to listen for connection
+		 * @param port the port to listen for connections on
+		 * @param numHandlers the number of method handler threads to run
+		 * @param verbose whether each call should be logged
+		 */
+		public Server(Object instance, Configuration conf, String bindAddress,
+				int port, int numHandlers, boolean verbose) throws IOException {
+			super(bindAddress, port, Invocation.class, numHandlers, conf,
+					classNameBase(instance.getClass().getName()));
+			this.dispatcher = new MethodDispatcher(instance);
+			this.verbose = verbose;
+		}
+
+		/**
+		 * Serve <code>protocol</code> with its own instance. Clients that
+		 * multiplex their protocols over one connection reach every
+		 * registered protocol of the server through it.
+		 */
+		public void addProtocol(Class<?> protocol, Object instance) {
+			if (!protocol.isInstance(instance)) {
+				throw new IllegalArgumentException(instance.getClass().getName()
+						+ " does not implement " + protocol.getName());
+			}
+			protocols.put(protocol.getName(), new MethodDispatcher(instance,
+					protocol));
+		}
+
+		/** The instance registered for the protocol, else the server's own. */
+		private MethodDispatcher dispatcherFor(String protocol) {
+			if (protocol != null) {
+				MethodDispatcher registered = protocols.get(protocol);
+				if (registered != null) {
+					return registered;
+				}
+			}
+			return dispatcher;
+		}
+
+		/** Asks the instance, as the getProtocolVersion call would. */
+		@Override
+		protected long getProtocolVersion(String protocol, long clientVersion)
+				throws IOException {
+			Object instance = dispatcherFor(protocol).getInstance();
+			if (instance instanceof VersionedProtocol) {
+				return ((VersionedProtocol) instance).getProtocolVersion(
+						protocol, clientVersion);
+			}
+			return super.getProtocolVersion(protocol, clientVersion);
+		}
+
+		@Override
+		public Writable call(Class<?> protocol, Writable param,
+				long receivedTime) throws IOException {
+			Invocation call = (Invocation) param;
+			if (verbose) {
+				LogUtils.log("Call: " + call);
+			}
+
+			MethodDispatcher dispatcher = dispatcherFor(protocol == null ? null
+					: protocol.getName());
+			MethodDispatcher.Entry method = dispatcher.lookup(
+					call.getMethodName(), call.getParamClasses());
+			if (method == null) {
+				throw new IOException("Unknown method " + call.getMethodName()
+						+ " called on "
+						+ dispatcher.getInstance().getClass().getName());
+			}
+
+			try {
+				Object value = method.invoke(call.getParameters());
+				if (method.isAsync()) {
+					// 立即释放 handler，future 完成时再发送结果
+					respondLater(method, (CompletionStage<?>) value);
+					return null;
+				}
+				if (verbose) {
+					LogUtils.log("Return: " + value);
+				}
+
+				return new ObjectWritable(method.getReturnType(), value);
+
+			} catch (IOException e) {
+				throw e;
+			} catch (Throwable e) {
+				if (!(e instanceof Exception)) {
+					LogUtils.log(e);
+				}
+				IOException ioe = new IOException(e.toString());
+				ioe.setStackTrace(e.getStackTrace());
+				throw ioe;
+			}
+		}
+
+		private void respondLater(final MethodDispatcher.Entry method,
+				CompletionStage<?> future) throws IOException {
+			if (future == null) {
+				throw new IOException("Asynchronous method returned null");
+			}
+			final DeferredResponse response = deferResponse();
+			future.whenComplete(new BiConsumer<Object, Throwable>() {
+				public void accept(Object value, Throwable error) {
+					if (error != null) {
+						if (error instanceof CompletionException
+								&& error.getCause() != null) {
+							error = error.getCause();
+						}
+						response.sendError(error);
+						return;
+					}
+					if (verbose) {
+						LogUtils.log("Return: " + value);
+					}
+					Class<?> valueClass = method.getReturnType();
+					if (valueClass == null) {
+						if (value == null) {
+							response.sendError(new IOException(
+									"Can't tell the class of a null result"));
+							return;
+						}
+						valueClass = value.getClass();
+					}
+					response.sendResponse(new ObjectWritable(valueClass, value));
+				}
+			});
+		}
+	}
+
 	/**
 	   * A version mismatch for the RPC protocol.
 	   */
@@ -0,0 +1,31 @@
+package java.wody.ipc;
+
+import java.io.IOException;
+
+/**
+ * 服务端执行 call 时抛出的异常
+ * 
+ * 异常本身不会被传回客户端，传回的只有异常的类名和错误信息
+ */
+public class RemoteException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	private String className;
+
+	public RemoteException(String className, String msg) {
+		super(msg);
+		this.className = className;
+	}
+
+	/** Returns the name of the exception class thrown on the server. */
+	public String getClassName() {
+		return className;
+	}
+
+	@Override
+	public String toString() {
+		return className + ": " + getMessage();
+	}
+
+}
@@ -0,0 +1,14 @@
+package java.wody.ipc;
+
+/**
+ * 可以被 {@link CallQueue} 调度的 call
+ */
+public interface Schedulable {
+
+	/**
+	 * 发起这个 call 的调用者，调度器把 identity 相等的 call 视为同一个调用者，
+	 * 目前由客户端地址与连接头中的协议名组成
+	 */
+	public Object getCallerIdentity();
+
+}
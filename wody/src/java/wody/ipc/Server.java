@@ -1,8 +1,73 @@
 package java.wody.ipc;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.wody.LogUtils;
+import java.wody.conf.Configuration;
+import java.wody.io.ClassDictionary;
+import java.wody.io.DataOutputBuffer;
+import java.wody.io.UTF8;
 import java.wody.io.Writable;
+import java.wody.util.ReflectionUtils;
 
+/**
+ * 服务端的抽象实现，基于 NIO selector 的 reactor 模型
+ *
+ * <ul>
+ * <li>一个 {@link Listener} 线程负责 accept 新连接，并把连接轮流分配给各个
+ * {@link Reader}</li>
+ * <li>多个 {@link Reader} 线程解析 {@link #HEADER}、{@link #CURRENT_VERSION}、
+ * {@link ConnectionHeader} 以及带长度前缀的 call，然后放入 call 队列</li>
+ * <li>多个 {@link Handler} 线程从队列中取出 call 并执行 {@link #call}</li>
+ * <li>{@link Handler} 会先尝试直接写回结果，写不完的部分交给 {@link Responder}
+ * 通过 selector 异步写出</li>
+ * </ul>
+ *
+ * 通过 {@link #ENGINE_NAME} 也可以选择 thread-per-connection 的阻塞引擎：
+ * 每个连接由一个独占的线程（JDK 支持时为虚拟线程）读取，
+ * call 交给 handler 或者同样在独立线程中执行，response 直接写回 socket
+ *
+ * 一个 call 的返回格式为：call id，{@link Status}，payload 长度，payload
+ */
 public abstract class Server {
 
 	/**
@@ -12,8 +77,1812 @@ public abstract class Server {
 
 	// 1 : Introduce ping and server does not throw away RPCs
 	// 3 : Introduce the protocol into the RPC connection header
-	public static final byte CURRENT_VERSION = 3;
+	// 4 : Introduce the client version into the connection header and the
+	//     version handshake
+	// 5 : Introduce multiplexed connections and protocol definitions
+	// 6 : Introduce the class dictionary
+	// 7 : Primitive arrays are written in bulk by ObjectWritable
+	public static final byte CURRENT_VERSION = 7;
 
-	protected abstract Writable call();
+	/**
+	 * Selects the server engine: {@link #ENGINE_NIO} (the default) multiplexes
+	 * all connections over a few selector threads, {@link #ENGINE_THREAD}
+	 * gives every connection its own thread doing blocking reads.
+	 */
+	public static final String ENGINE_NAME = "ipc.server.engine";
+	public static final String ENGINE_NIO = "nio";
+	public static final String ENGINE_THREAD = "thread";
+
+	/**
+	 * With the thread engine, run each call on its own thread instead of
+	 * queueing it for the handler pool.
+	 */
+	public static final String THREAD_PER_CALL_NAME = "ipc.server.thread.per.call";
+
+	/**
+	 * How many calls/handler are allowed in the queue.
+	 */
+	private static final int MAX_QUEUE_SIZE_PER_HANDLER = 100;
+
+	/**
+	 * Capacity of the call queue, by default
+	 * {@link #MAX_QUEUE_SIZE_PER_HANDLER} calls per handler.
+	 */
+	public static final String CALLQUEUE_SIZE_NAME = "ipc.server.callqueue.size";
+
+	/**
+	 * What a reader does when the call queue is full:
+	 * {@link #CALLQUEUE_OVERFLOW_BLOCK} (the default) waits for room and so
+	 * stops reading from its sockets, {@link #CALLQUEUE_OVERFLOW_REJECT}
+	 * answers the call right away with {@link Status#BUSY}.
+	 */
+	public static final String CALLQUEUE_OVERFLOW_NAME = "ipc.server.callqueue.overflow";
+	public static final String CALLQUEUE_OVERFLOW_BLOCK = "block";
+	public static final String CALLQUEUE_OVERFLOW_REJECT = "reject";
+
+	/**
+	 * The {@link CallQueue} implementation, {@link FifoCallQueue} by default.
+	 */
+	public static final String CALLQUEUE_IMPL_NAME = "ipc.server.callqueue.impl";
+
+	/** call id + status + payload length */
+	static final int RESPONSE_HEADER_LENGTH = 12;
+
+	/**
+	 * Initial and max size of response buffer
+	 */
+	static final int INITIAL_RESP_BUF_SIZE = 10240;
+
+	/**
+	 * If the user accidentally sends an HTTP GET to an IPC port, or a random
+	 * client sends garbage, we refuse calls larger than this.
+	 */
+	static final int MAX_DATA_LENGTH = 64 * 1024 * 1024;
+
+	/**
+	 * Maximum number of bytes handed to a single channel read or write, so a
+	 * large buffer does not make the JDK allocate an equally large direct
+	 * buffer for the syscall.
+	 */
+	private static final int NIO_BUFFER_LIMIT = 8 * 1024;
+
+	private String bindAddress;
+	private int port;                               // port we listen on
+	private int handlerCount;                       // number of handler threads
+	private int readThreads;                        // number of read threads
+	private Class<? extends Writable> paramClass;   // class of call parameters
+	private int maxIdleTime;                        // the maximum idle time after
+	                                                // which a client may be disconnected
+	private int thresholdIdleConnections;           // the number of idle connections
+	                                                // after which we will start
+	                                                // cleaning up idle connections
+	int maxConnectionsToNuke;                       // the max number of
+	                                                // connections to nuke
+	                                                // during a cleanup
+
+	protected Configuration conf;
+
+	private int maxQueueSize;
+	private final boolean rejectWhenBusy; // answer BUSY instead of blocking readers
+	private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
+
+	volatile private boolean running = true;         // true while server runs
+	private CallQueue<Call> callQueue; // queued calls
+
+	private List<Connection> connectionList = Collections
+			.synchronizedList(new LinkedList<Connection>());
+	// maintain a list of client connections
+	private Listener listener = null;
+	private Responder responder = null;
+	private BlockingListener blockingListener = null;
+	private ThreadFactory callThreads = null; // set if calls bypass the handlers
+	private int numConnections = 0;
+	private Handler[] handlers = null;
+
+	private Random rand = new Random();
+	private long lastCleanupRunTime = 0; // the last time when a cleanup
+	                                     // connection (for idle connections) ran
+	private long cleanupInterval = 10000; // the minimum interval between
+	                                      // two cleanup runs
+
+	/**
+	 * A convenience method to bind to a given address and report better
+	 * exceptions if the address is not a valid host.
+	 *
+	 * @param socket the socket to bind
+	 * @param address the address to bind to
+	 * @param backlog the number of connections allowed in the queue
+	 * @throws BindException if the address can't be bound
+	 * @throws java.net.UnknownHostException if the address isn't a valid host name
+	 * @throws IOException other random errors from bind
+	 */
+	public static void bind(ServerSocket socket, InetSocketAddress address,
+			int backlog) throws IOException {
+		try {
+			socket.bind(address, backlog);
+		} catch (BindException e) {
+			BindException bindException = new BindException("Problem binding to "
+					+ address + " : " + e.getMessage());
+			bindException.initCause(e);
+			throw bindException;
+		} catch (SocketException e) {
+			// If they try to bind to a different host's address, give a better
+			// error message.
+			if ("Unresolved address".equals(e.getMessage())) {
+				throw new java.net.UnknownHostException("Invalid hostname for server: "
+						+ address.getHostName());
+			} else {
+				throw e;
+			}
+		}
+	}
+
+	/** A call queued for handling. */
+	private static class Call implements Schedulable {
+		private int id;                 // the client's call id
+		private Writable param;         // the parameter passed
+		private Connection connection;  // connection to client
+		private Class<?> protocol;      // the protocol called
+		private long timestamp;         // the time received when response is null
+		                                // the time served when response is not null
+		private ByteBuffer response;    // the response for this call
+		private DeferredResponse deferred; // set if the response is sent later
+		// 响应中定义的类，在响应排入连接之后提交到字典
+		private ClassDictionary.Output classes;
+		private Object callerIdentity;  // who the call queue schedules it as
+
+		public Call(int id, Writable param, Connection connection,
+				Class<?> protocol) {
+			this.id = id;
+			this.param = param;
+			this.connection = connection;
+			this.protocol = protocol;
+			this.callerIdentity = connection.callerIdentity;
+			this.timestamp = System.currentTimeMillis();
+			this.response = null;
+		}
+
+		@Override
+		public String toString() {
+			return param.toString() + " from " + connection.toString();
+		}
+
+		public void setResponse(ByteBuffer response) {
+			this.response = response;
+		}
+
+		public Object getCallerIdentity() {
+			return callerIdentity;
+		}
+
+		/** Called once the response is queued on the connection. */
+		void commitClasses() {
+			if (classes != null) {
+				classes.commit();
+				classes = null;
+			}
+		}
+	}
+
+	/**
+	 * 回答客户端协议版本的 handshake。服务端的版本可能要由用户代码给出，
+	 * 所以和普通的 call 一样交给 handler 执行，而不是在读线程中。
+	 */
+	private static class HandshakeCall extends Call {
+		private final int protocolId;       // 0 for the header's protocol
+		private final String protocolName;
+		private final long clientVersion;
+		private final IOException error;    // sent instead of the version
+
+		HandshakeCall(Connection connection, int protocolId,
+				String protocolName, long clientVersion, IOException error) {
+			super(Client.HANDSHAKE_CALL_ID, null, connection, null);
+			this.protocolId = protocolId;
+			this.protocolName = protocolName;
+			this.clientVersion = clientVersion;
+			this.error = error;
+		}
+
+		@Override
+		public String toString() {
+			return "handshake of " + protocolName + " from "
+					+ super.connection.toString();
+		}
+	}
+
+	private static final ThreadLocal<Call> CurCall = new ThreadLocal<Call>();
+
+	/**
+	 * 延迟发送的 response
+	 * 
+	 * 在 {@link Server#call} 中调用 {@link Server#deferResponse()} 之后，handler
+	 * 不再发送这个 call 的 response，而是由持有句柄的一方在工作完成时调用
+	 * {@link #sendResponse} 或 {@link #sendError}，通常是在另一个线程中。
+	 * handler 因此可以立即去处理下一个 call
+	 */
+	public static class DeferredResponse {
+		private final Call call;
+		private final AtomicBoolean sent = new AtomicBoolean();
+
+		private DeferredResponse(Call call) {
+			this.call = call;
+		}
+
+		/** Sends <code>value</code> as the call's result. */
+		public void sendResponse(Writable value) {
+			if (!send(Status.SUCCESS, value, null, null)) {
+				throw new IllegalStateException("Response of " + call
+						+ " was already sent");
+			}
+		}
+
+		/** Fails the call with <code>error</code>. */
+		public void sendError(Throwable error) {
+			if (!send(Status.ERROR, null, error.getClass().getName(),
+					stringifyException(error))) {
+				throw new IllegalStateException("Response of " + call
+						+ " was already sent");
+			}
+		}
+
+		/** @return false if a response was already sent */
+		private boolean send(Status status, Writable value, String errorClass,
+				String error) {
+			if (!sent.compareAndSet(false, true)) {
+				return false;
+			}
+			try {
+				setupResponse(new DataOutputBuffer(), call, status, value,
+						errorClass, error);
+				call.connection.doRespond(call);
+				call.commitClasses();
+			} catch (IOException e) {
+				LogUtils.log("Failed to send deferred response of " + call
+						+ ": " + e);
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Takes the response of the call the current thread is handling away from
+	 * the handler. Must be called from within {@link #call}; whatever
+	 * <code>call</code> then returns is ignored.
+	 * 
+	 * @return the handle to send the response with later
+	 * @throws IllegalStateException if the thread is not handling a call
+	 */
+	public static DeferredResponse deferResponse() {
+		Call call = CurCall.get();
+		if (call == null) {
+			throw new IllegalStateException("Not handling a call");
+		}
+		call.deferred = new DeferredResponse(call);
+		return call.deferred;
+	}
+
+	/** Listens on the socket. Creates jobs on the handler queue. */
+	private class Listener extends Thread {
+
+		private ServerSocketChannel acceptChannel = null; // the accept channel
+		private Selector selector = null; // the selector that we use for the server
+		private Reader[] readers = null;
+		private int currentReader = 0;
+		private InetSocketAddress address; // the address we bind at
+		private int backlogLength = conf.getInt("ipc.server.listen.queue.size", 128);
+
+		public Listener() throws IOException {
+			address = new InetSocketAddress(bindAddress, port);
+			// Create a new server socket and set to non blocking mode
+			acceptChannel = ServerSocketChannel.open();
+			acceptChannel.configureBlocking(false);
+
+			// Bind the server socket to the local host and port
+			bind(acceptChannel.socket(), address, backlogLength);
+			port = acceptChannel.socket().getLocalPort(); // Could be an ephemeral port
+			// create a selector;
+			selector = Selector.open();
+			readers = new Reader[readThreads];
+			for (int i = 0; i < readThreads; i++) {
+				readers[i] = new Reader(i);
+			}
+
+			// Register accepts on the server socket with the selector.
+			acceptChannel.register(selector, SelectionKey.OP_ACCEPT);
+			this.setName("IPC Server listener on " + port);
+			this.setDaemon(true);
+		}
+
+		/**
+		 * 每个 reader 拥有自己的 selector，负责读取分配给它的那部分连接
+		 */
+		private class Reader extends Thread {
+
+			private final Selector readSelector;
+			// listener 把新连接放到这里，由 reader 自己在 select 之前完成注册，
+			// 避免 register 与 select 在同一个 selector 上互相阻塞
+			private final ConcurrentLinkedQueue<NioConnection> pendingConnections =
+				new ConcurrentLinkedQueue<NioConnection>();
+
+			Reader(int instanceNumber) throws IOException {
+				this.readSelector = Selector.open();
+				this.setName("IPC Server reader " + instanceNumber + " on " + port);
+				this.setDaemon(true);
+			}
+
+			@Override
+			public void run() {
+				LogUtils.log("Starting " + getName());
+				while (running) {
+					try {
+						doRunLoop();
+					} catch (InterruptedException e) {
+						if (running) {
+							LogUtils.log(getName() + " unexpectedly interrupted: " + e);
+						}
+					} catch (IOException ex) {
+						LogUtils.log(ex);
+					} catch (OutOfMemoryError e) {
+						// we can run out of memory if we have too many threads
+						// log the event and sleep for a minute and give
+						// some thread(s) a chance to finish
+						LogUtils.log("Out of Memory in server reader");
+						LogUtils.log(e);
+						try {
+							Thread.sleep(60000);
+						} catch (InterruptedException ie) {
+						}
+					}
+				}
+				try {
+					readSelector.close();
+				} catch (IOException ignored) {
+				}
+			}
+
+			private void doRunLoop() throws IOException, InterruptedException {
+				while (running) {
+					registerPendingConnections();
+					readSelector.select();
+					Iterator<SelectionKey> iter = readSelector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								doRead(key);
+							}
+						} catch (CancelledKeyException e) {
+							// the connection was closed by the listener's cleanup
+						}
+					}
+				}
+			}
+
+			private void registerPendingConnections() {
+				NioConnection c;
+				while ((c = pendingConnections.poll()) != null) {
+					try {
+						c.channel.register(readSelector, SelectionKey.OP_READ, c);
+					} catch (ClosedChannelException e) {
+						// closed before we got to it, e.g. by the idle cleanup
+					}
+				}
+			}
+
+			/** Hand a freshly accepted connection over to this reader. */
+			void addConnection(NioConnection c) {
+				pendingConnections.add(c);
+				readSelector.wakeup();
+			}
+
+			void shutdown() {
+				readSelector.wakeup();
+				this.interrupt();
+			}
+		}
+
+		@Override
+		public void run() {
+			LogUtils.log(getName() + ": starting");
+			for (Reader reader : readers) {
+				reader.start();
+			}
+			while (running) {
+				SelectionKey key = null;
+				try {
+					selector.select();
+					Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						key = iter.next();
+						iter.remove();
+						try {
+							if (key.isValid()) {
+								if (key.isAcceptable()) {
+									doAccept(key);
+								}
+							}
+						} catch (IOException e) {
+						}
+						key = null;
+					}
+				} catch (OutOfMemoryError e) {
+					// we can run out of memory if we have too many threads
+					// log the event and sleep for a minute and give
+					// some thread(s) a chance to finish
+					LogUtils.log("Out of Memory in server select");
+					LogUtils.log(e);
+					closeCurrentConnection(key);
+					cleanupConnections(true);
+					try {
+						Thread.sleep(60000);
+					} catch (Exception ie) {
+					}
+				} catch (Exception e) {
+					closeCurrentConnection(key);
+				}
+				cleanupConnections(false);
+			}
+			LogUtils.log("Stopping " + this.getName());
+
+			synchronized (this) {
+				try {
+					acceptChannel.close();
+					selector.close();
+				} catch (IOException e) {
+				}
+
+				selector = null;
+				acceptChannel = null;
+
+				// clean up all connections
+				while (!connectionList.isEmpty()) {
+					closeConnection(connectionList.remove(0));
+				}
+			}
+		}
+
+		private void closeCurrentConnection(SelectionKey key) {
+			if (key != null) {
+				Connection c = (Connection) key.attachment();
+				if (c != null) {
+					LogUtils.log(getName() + ": disconnecting client "
+							+ c.getHostAddress());
+					closeConnection(c);
+					c = null;
+				}
+			}
+		}
+
+		InetSocketAddress getAddress() {
+			return (InetSocketAddress) acceptChannel.socket().getLocalSocketAddress();
+		}
+
+		void doAccept(SelectionKey key) throws IOException, OutOfMemoryError {
+			ServerSocketChannel server = (ServerSocketChannel) key.channel();
+			SocketChannel channel;
+			while ((channel = server.accept()) != null) {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(tcpNoDelay);
+				NioConnection c = new NioConnection(channel, System.currentTimeMillis());
+				synchronized (connectionList) {
+					connectionList.add(numConnections, c);
+					numConnections++;
+				}
+				getReader().addConnection(c);
+			}
+		}
+
+		void doRead(SelectionKey key) throws InterruptedException {
+			int count = 0;
+			NioConnection c = (NioConnection) key.attachment();
+			if (c == null) {
+				return;
+			}
+			c.setLastContact(System.currentTimeMillis());
+
+			try {
+				count = c.readAndProcess();
+			} catch (InterruptedException ieo) {
+				LogUtils.log(getName() + ": readAndProcess caught InterruptedException");
+				throw ieo;
+			} catch (Exception e) {
+				LogUtils.log(getName() + ": readAndProcess threw exception " + e
+						+ ". Count of bytes read: " + count);
+				count = -1; // so that the (count < 0) block is executed
+			}
+			if (count < 0) {
+				LogUtils.log(getName() + ": disconnecting client " + c
+						+ ". Number of active connections: " + numConnections);
+				closeConnection(c);
+				c = null;
+			} else {
+				c.setLastContact(System.currentTimeMillis());
+			}
+		}
+
+		synchronized void doStop() {
+			if (selector != null) {
+				selector.wakeup();
+				Thread.yield();
+			}
+			if (acceptChannel != null) {
+				try {
+					acceptChannel.socket().close();
+				} catch (IOException e) {
+					LogUtils.log(getName() + ":Exception in closing listener socket. " + e);
+				}
+			}
+			for (Reader reader : readers) {
+				reader.shutdown();
+			}
+		}
+
+		// The method that will return the next reader to work with
+		// Simplistic implementation of round robin for now
+		Reader getReader() {
+			currentReader = (currentReader + 1) % readers.length;
+			return readers[currentReader];
+		}
+	}
+
+	// Sends responses of RPC back to clients.
+	private class Responder extends Thread {
+		private Selector writeSelector;
+		private int pending; // connections waiting to register
+
+		final static int PURGE_INTERVAL = 900000; // 15mins
+
+		Responder() throws IOException {
+			this.setName("IPC Server Responder");
+			this.setDaemon(true);
+			writeSelector = Selector.open(); // create a selector
+			pending = 0;
+		}
+
+		@Override
+		public void run() {
+			LogUtils.log(getName() + ": starting");
+			long lastPurgeTime = 0; // last check for old calls.
+
+			while (running) {
+				try {
+					waitPending(); // If a channel is being registered, wait.
+					writeSelector.select(PURGE_INTERVAL);
+					Iterator<SelectionKey> iter = writeSelector.selectedKeys().iterator();
+					while (iter.hasNext()) {
+						SelectionKey key = iter.next();
+						iter.remove();
+						try {
+							if (key.isValid() && key.isWritable()) {
+								doAsyncWrite(key);
+							}
+						} catch (IOException e) {
+							LogUtils.log(getName() + ": doAsyncWrite threw exception " + e);
+						}
+					}
+					long now = System.currentTimeMillis();
+					if (now < lastPurgeTime + PURGE_INTERVAL) {
+						continue;
+					}
+					lastPurgeTime = now;
+					//
+					// If there were some calls that have not been sent out for a
+					// long time, discard them.
+					//
+					ArrayList<Call> calls;
+
+					// get the list of channels from list of keys.
+					synchronized (writeSelector.keys()) {
+						calls = new ArrayList<Call>(writeSelector.keys().size());
+						iter = writeSelector.keys().iterator();
+						while (iter.hasNext()) {
+							SelectionKey key = iter.next();
+							Call call = (Call) key.attachment();
+							if (call != null && key.channel() == connectionOf(call).channel) {
+								calls.add(call);
+							}
+						}
+					}
+
+					for (Call call : calls) {
+						try {
+							doPurge(call, now);
+						} catch (IOException e) {
+							LogUtils.log("Error in purging old calls " + e);
+						}
+					}
+				} catch (OutOfMemoryError e) {
+					//
+					// we can run out of memory if we have too many threads
+					// log the event and sleep for a minute and give
+					// some thread(s) a chance to finish
+					//
+					LogUtils.log("Out of Memory in server select");
+					LogUtils.log(e);
+					try {
+						Thread.sleep(60000);
+					} catch (Exception ie) {
+					}
+				} catch (Exception e) {
+					LogUtils.log("Exception in Responder");
+					LogUtils.log(e);
+				}
+			}
+			LogUtils.log("Stopping " + this.getName());
+		}
+
+		private void doAsyncWrite(SelectionKey key) throws IOException {
+			Call call = (Call) key.attachment();
+			if (call == null) {
+				return;
+			}
+			if (key.channel() != connectionOf(call).channel) {
+				throw new IOException("doAsyncWrite: bad channel");
+			}
+
+			synchronized (connectionOf(call).responseQueue) {
+				if (processResponse(connectionOf(call).responseQueue, false)) {
+					try {
+						key.interestOps(0);
+					} catch (CancelledKeyException e) {
+						/*
+						 * The Listener/reader might have closed the socket. We
+						 * don't explicitly cancel the key, so not sure if this
+						 * will ever fire. This warning could be removed.
+						 */
+						LogUtils.log("Exception while changing ops : " + e);
+					}
+				}
+			}
+		}
+
+		//
+		// Remove calls that have been pending in the responseQueue
+		// for a long time.
+		//
+		private void doPurge(Call call, long now) throws IOException {
+			LinkedList<Call> responseQueue = connectionOf(call).responseQueue;
+			synchronized (responseQueue) {
+				Iterator<Call> iter = responseQueue.listIterator(0);
+				while (iter.hasNext()) {
+					call = iter.next();
+					if (now > call.timestamp + PURGE_INTERVAL) {
+						closeConnection(call.connection);
+						break;
+					}
+				}
+			}
+		}
+
+		// Processes one response. Returns true if there are no more pending
+		// data for this channel.
+		//
+		private boolean processResponse(LinkedList<Call> responseQueue,
+				boolean inHandler) throws IOException {
+			boolean error = true;
+			boolean done = false; // there is more data for this channel.
+			int numElements = 0;
+			Call call = null;
+			try {
+				synchronized (responseQueue) {
+					//
+					// If there are no items for this channel, then we are done
+					//
+					numElements = responseQueue.size();
+					if (numElements == 0) {
+						error = false;
+						return true; // no more data for this channel.
+					}
+					//
+					// Extract the first call
+					//
+					call = responseQueue.removeFirst();
+					SocketChannel channel = connectionOf(call).channel;
+					//
+					// Send as much data as we can in the non-blocking fashion
+					//
+					int numBytes = channelWrite(channel, call.response);
+					if (numBytes < 0) {
+						return true;
+					}
+					if (!call.response.hasRemaining()) {
+						call.connection.decRpcCount();
+						if (numElements == 1) { // last call fully processes.
+							done = true; // no more data for this channel.
+						} else {
+							done = false; // more calls pending to be sent.
+						}
+					} else {
+						//
+						// If we were unable to write the entire response out,
+						// then insert in Selector queue.
+						//
+						connectionOf(call).responseQueue.addFirst(call);
+
+						if (inHandler) {
+							// set the serve time when the response has to be sent
+							// later
+							call.timestamp = System.currentTimeMillis();
+
+							incPending();
+							try {
+								// Wakeup the thread blocked on select, only then
+								// can the call to channel.register() complete.
+								writeSelector.wakeup();
+								channel.register(writeSelector, SelectionKey.OP_WRITE, call);
+							} catch (ClosedChannelException e) {
+								// Its ok. channel might be closed else where.
+								done = true;
+							} finally {
+								decPending();
+							}
+						}
+					}
+					error = false; // everything went off well
+				}
+			} finally {
+				if (error && call != null) {
+					LogUtils.log(getName() + ", call " + call + ": output error");
+					done = true; // error. no more data for this channel.
+					closeConnection(call.connection);
+				}
+			}
+			return done;
+		}
+
+		//
+		// Enqueue a response from the application.
+		//
+		void doRespond(Call call) throws IOException {
+			synchronized (connectionOf(call).responseQueue) {
+				connectionOf(call).responseQueue.addLast(call);
+				if (connectionOf(call).responseQueue.size() == 1) {
+					processResponse(connectionOf(call).responseQueue, true);
+				}
+			}
+		}
+
+		// only connections of the NIO engine ever reach the responder
+		private NioConnection connectionOf(Call call) {
+			return (NioConnection) call.connection;
+		}
+
+		private synchronized void incPending() { // call waiting to be enqueued.
+			pending++;
+		}
+
+		private synchronized void decPending() { // call done enqueueing.
+			pending--;
+			notify();
+		}
+
+		private synchronized void waitPending() throws InterruptedException {
+			while (pending > 0) {
+				wait();
+			}
+		}
+	}
+
+	/**
+	 * 一个客户端连接：解析连接头与 call 并交给 handler 处理，
+	 * 具体的读写方式由 {@link NioConnection} 与 {@link BlockingConnection} 决定
+	 */
+	private abstract class Connection {
+		// number of outstanding rpcs: the reader increments it, handlers and
+		// responders decrement it
+		private final AtomicInteger rpcCount = new AtomicInteger();
+		private volatile long lastContact;
+		// Cache the remote host & port info so that even if the socket is
+		// disconnected, we can say where it used to connect to.
+		private String hostAddress;
+		private int remotePort;
+
+		ConnectionHeader header = new ConnectionHeader();
+		Class<?> protocol;
+		// 客户端要求时建立的类名字典
+		ClassDictionary dictionary;
+		// 多路复用的连接上客户端定义的协议 id -> 协议，只由读这个连接的线程访问
+		private final Map<Integer, Class<?>> protocols =
+			new HashMap<Integer, Class<?>>();
+		// who the call queue schedules this connection's calls as
+		String callerIdentity;
+		// 多路复用时按协议区分调用者，否则它们都是 host/null
+		private final Map<Integer, String> protocolIdentities =
+			new HashMap<Integer, String>();
+
+		Connection(Socket socket, long lastContact) {
+			this.lastContact = lastContact;
+			InetAddress addr = socket.getInetAddress();
+			if (addr == null) {
+				this.hostAddress = "*Unknown*";
+			} else {
+				this.hostAddress = addr.getHostAddress();
+			}
+			this.remotePort = socket.getPort();
+			this.callerIdentity = hostAddress;
+		}
+
+		@Override
+		public String toString() {
+			return getHostAddress() + ":" + remotePort;
+		}
+
+		public String getHostAddress() {
+			return hostAddress;
+		}
+
+		public void setLastContact(long lastContact) {
+			this.lastContact = lastContact;
+		}
+
+		public long getLastContact() {
+			return lastContact;
+		}
+
+		/* Return true if the connection has no outstanding rpc */
+		private boolean isIdle() {
+			return rpcCount.get() == 0;
+		}
+
+		/* Decrement the outstanding RPC count */
+		void decRpcCount() {
+			rpcCount.decrementAndGet();
+		}
+
+		/* Increment the outstanding RPC count */
+		private void incRpcCount() {
+			rpcCount.incrementAndGet();
+		}
+
+		private boolean timedOut(long currentTime) {
+			if (isIdle() && currentTime - lastContact > maxIdleTime) {
+				return true;
+			}
+			return false;
+		}
+
+		/** Checks the 4 byte magic and version that start every connection. */
+		boolean checkHeader(ByteBuffer magic, int version) {
+			if (!HEADER.equals(magic) || version != CURRENT_VERSION) {
+				// Warning is ok since this is not supposed to happen.
+				LogUtils.log("Incorrect header or version mismatch from "
+						+ hostAddress + ":" + remotePort + " got version "
+						+ version + " expected version " + CURRENT_VERSION);
+				return false;
+			}
+			return true;
+		}
+
+		// / Reads the connection header following version
+		void processHeader(byte[] data) throws IOException,
+				InterruptedException {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+					data));
+			header.readFields(in);
+			if (header.usesClassDictionary()) {
+				dictionary = new ClassDictionary();
+			}
+			callerIdentity = hostAddress + "/" + header.getProtocol();
+			try {
+				String protocolClassName = header.getProtocol();
+				if (protocolClassName != null) {
+					protocol = conf.getClassByName(protocolClassName);
+				}
+			} catch (ClassNotFoundException cnfe) {
+				throw new IOException("Unknown protocol: " + header.getProtocol());
+			}
+			if (header.getClientVersion() != ConnectionHeader.UNKNOWN_VERSION) {
+				sendHandshake(0, header.getProtocol(), header.getClientVersion(),
+						null);
+			}
+		}
+
+		/**
+		 * Reads a protocol definition on a multiplexed connection: the id the
+		 * client tags the protocol's calls with, the protocol name and the
+		 * client version. Every definition is answered with a handshake.
+		 */
+		private void processProtocolDef(DataInput in) throws IOException,
+				InterruptedException {
+			int protocolId = in.readInt();
+			String protocolName = UTF8.readString(in);
+			long clientVersion = in.readLong();
+			if (!header.isMultiplexed() || protocolId <= 0) {
+				throw new IOException("Unexpected definition of protocol "
+						+ protocolName + " from " + this);
+			}
+			protocolIdentities.put(protocolId, hostAddress + "/" + protocolName);
+
+			IOException error = null;
+			if (protocolName.length() == 0) {
+				protocolName = null; // as in the connection header
+				protocols.put(protocolId, null);
+			} else {
+				try {
+					protocols.put(protocolId, conf.getClassByName(protocolName));
+				} catch (ClassNotFoundException cnfe) {
+					error = new IOException("Unknown protocol: " + protocolName);
+				}
+			}
+			sendHandshake(protocolId, protocolName, clientVersion, error);
+		}
+
+		/**
+		 * Answers the client's version with the server's before any call, so
+		 * the client does not need a getProtocolVersion round trip. The
+		 * answer is left to a handler, see {@link #handleHandshake}.
+		 * 
+		 * @param protocolId the defined protocol, 0 for the header's
+		 * @param error sent instead of the version if not null
+		 */
+		private void sendHandshake(int protocolId, String protocolName,
+				long clientVersion, IOException error) throws IOException,
+				InterruptedException {
+			incRpcCount(); // the responder decrements it once written
+			dispatch(new HandshakeCall(this, protocolId, protocolName,
+					clientVersion, error));
+		}
+
+		void processData(byte[] data) throws IOException, InterruptedException {
+			ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+			DataInputStream dis = dictionary == null ? new DataInputStream(
+					bytes) : dictionary.newInput(bytes);
+			int id = dis.readInt(); // try to read an id
+			if (id == Client.PROTOCOL_DEF_CALL_ID) {
+				processProtocolDef(dis);
+				return;
+			}
+
+			Class<?> callProtocol = protocol;
+			String identity = null;
+			if (header.isMultiplexed()) {
+				// 多路复用时每个 call 带有它的协议 id
+				int protocolId = dis.readInt();
+				if (!protocols.containsKey(protocolId)) {
+					throw new IOException("Undefined protocol id " + protocolId
+							+ " from " + this);
+				}
+				callProtocol = protocols.get(protocolId);
+				identity = protocolIdentities.get(protocolId);
+			}
+
+			Writable param = ReflectionUtils.newInstance(paramClass, conf); // read param
+			param.readFields(dis);
+
+			Call call = new Call(id, param, this, callProtocol);
+			if (identity != null) {
+				call.callerIdentity = identity;
+			}
+			incRpcCount(); // Increment the rpc count
+			dispatch(call);
+		}
+
+		/** Hands a decoded call over to whoever runs it. */
+		void dispatch(Call call) throws IOException, InterruptedException {
+			if (!rejectWhenBusy || call instanceof HandshakeCall) {
+				// handshake 的 response 中不能是 BUSY，客户端靠它得到版本
+				callQueue.put(call); // queue the call; maybe blocked here
+			} else if (!callQueue.offer(call)) {
+				// 队列已满：不执行这个 call，直接告诉客户端稍后重试
+				setupBusyResponse(call);
+				doRespond(call);
+			}
+		}
+
+		/** Sends the response already set up for <code>call</code>. */
+		abstract void doRespond(Call call) throws IOException;
+
+		abstract void close() throws IOException;
+	}
+
+	/** Reads calls from a non-blocking channel on behalf of a {@link Listener.Reader}. */
+	private class NioConnection extends Connection {
+		private boolean versionRead = false; // if initial signature and
+		                                     // version are read
+		private boolean headerRead = false;  // if the connection header that
+		                                     // follows version is read.
+
+		private SocketChannel channel;
+		private ByteBuffer data;
+		private ByteBuffer dataLengthBuffer;
+		private LinkedList<Call> responseQueue;
+		private int dataLength;
+		private Socket socket;
+
+		public NioConnection(SocketChannel channel, long lastContact) {
+			super(channel.socket(), lastContact);
+			this.channel = channel;
+			this.data = null;
+			this.dataLengthBuffer = ByteBuffer.allocate(4);
+			this.socket = channel.socket();
+			this.responseQueue = new LinkedList<Call>();
+		}
+
+		/**
+		 * 从 channel 中读取数据，读到的每一个完整的 call 都会被放入 call 队列，
+		 * 直到 channel 中暂时没有更多数据为止
+		 *
+		 * @return 最后一次读取的字节数，小于0表示连接应被关闭
+		 */
+		public int readAndProcess() throws IOException, InterruptedException {
+			while (true) {
+				/*
+				 * Read at most one RPC. If the header is not read completely yet
+				 * then iterate until we read first RPC or until there is no data
+				 * left.
+				 */
+				int count = -1;
+				if (dataLengthBuffer.remaining() > 0) {
+					count = channelRead(channel, dataLengthBuffer);
+					if (count < 0 || dataLengthBuffer.remaining() > 0) {
+						return count;
+					}
+				}
+
+				if (!versionRead) {
+					// Every connection is expected to send the header.
+					ByteBuffer versionBuffer = ByteBuffer.allocate(1);
+					count = channelRead(channel, versionBuffer);
+					if (count <= 0) {
+						return count;
+					}
+					int version = versionBuffer.get(0);
+
+					dataLengthBuffer.flip();
+					if (!checkHeader(dataLengthBuffer, version)) {
+						return -1;
+					}
+					dataLengthBuffer.clear();
+					versionRead = true;
+					continue;
+				}
+
+				if (data == null) {
+					dataLengthBuffer.flip();
+					dataLength = dataLengthBuffer.getInt();
+
+					if (dataLength == Client.PING_CALL_ID) {
+						dataLengthBuffer.clear();
+						continue; // ping message
+					}
+					if (dataLength < 0 || dataLength > MAX_DATA_LENGTH) {
+						LogUtils.log("Unexpected data length " + dataLength
+								+ "!! from " + getHostAddress());
+						return -1;
+					}
+					data = ByteBuffer.allocate(dataLength);
+				}
+
+				count = channelRead(channel, data);
+
+				if (data.remaining() == 0) {
+					dataLengthBuffer.clear();
+					data.flip();
+					if (headerRead) {
+						processData(data.array());
+					} else {
+						processHeader(data.array());
+						headerRead = true;
+					}
+					data = null;
+					continue;
+				}
+				return count;
+			}
+		}
+
+		@Override
+		void doRespond(Call call) throws IOException {
+			responder.doRespond(call);
+		}
+
+		@Override
+		synchronized void close() throws IOException {
+			data = null;
+			dataLengthBuffer = null;
+			if (!channel.isOpen()) {
+				return;
+			}
+			try {
+				socket.shutdownOutput();
+			} catch (Exception e) {
+			}
+			if (channel.isOpen()) {
+				try {
+					channel.close();
+				} catch (Exception e) {
+				}
+			}
+			try {
+				socket.close();
+			} catch (Exception e) {
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections for the thread-per-connection engine and starts a
+	 * {@link BlockingConnection} on its own (virtual, when available) thread
+	 * for each of them.
+	 */
+	private class BlockingListener extends Thread {
+
+		private ServerSocket serverSocket;
+		private ThreadFactory connectionThreads;
+
+		BlockingListener() throws IOException {
+			serverSocket = new ServerSocket();
+			bind(serverSocket, new InetSocketAddress(bindAddress, port), conf
+					.getInt("ipc.server.listen.queue.size", 128));
+			port = serverSocket.getLocalPort(); // Could be an ephemeral port
+			// accept() 定期超时返回，以便清理空闲连接
+			serverSocket.setSoTimeout((int) cleanupInterval);
+			connectionThreads = newThreadFactory("IPC Server connection on "
+					+ port);
+			this.setName("IPC Server listener on " + port);
+			this.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			LogUtils.log(getName() + ": starting");
+			while (running) {
+				try {
+					Socket socket = serverSocket.accept();
+					socket.setTcpNoDelay(tcpNoDelay);
+					BlockingConnection c = new BlockingConnection(socket);
+					synchronized (connectionList) {
+						connectionList.add(numConnections, c);
+						numConnections++;
+					}
+					connectionThreads.newThread(c).start();
+				} catch (SocketTimeoutException e) {
+					// nothing to accept, fall through to the cleanup
+				} catch (IOException e) {
+					if (running) {
+						LogUtils.log(getName() + " caught: " + e);
+					}
+				} catch (OutOfMemoryError e) {
+					LogUtils.log("Out of Memory in server accept");
+					LogUtils.log(e);
+					cleanupConnections(true);
+					try {
+						Thread.sleep(60000);
+					} catch (Exception ie) {
+					}
+				}
+				cleanupConnections(false);
+			}
+			LogUtils.log("Stopping " + this.getName());
+
+			synchronized (this) {
+				// clean up all connections
+				while (!connectionList.isEmpty()) {
+					closeConnection(connectionList.remove(0));
+				}
+			}
+		}
+
+		InetSocketAddress getAddress() {
+			return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+		}
+
+		synchronized void doStop() {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				LogUtils.log(getName() + ":Exception in closing listener socket. " + e);
+			}
+		}
+	}
+
+	/**
+	 * 阻塞模式下的连接，由一个独占的线程用 DataInputStream 读取 call，
+	 * response 直接在调用者线程中写回 socket
+	 */
+	private class BlockingConnection extends Connection implements Runnable {
+
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+		// a Lock rather than a monitor, so a virtual thread blocked in the
+		// write does not pin its carrier thread
+		private final ReentrantLock outLock = new ReentrantLock();
+
+		BlockingConnection(Socket socket) throws IOException {
+			super(socket, System.currentTimeMillis());
+			this.socket = socket;
+			this.in = new DataInputStream(new BufferedInputStream(socket
+					.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(socket
+					.getOutputStream()));
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] magic = new byte[HEADER.capacity()];
+				in.readFully(magic);
+				if (!checkHeader(ByteBuffer.wrap(magic), in.readByte())) {
+					return;
+				}
+				processHeader(readData(in.readInt()));
+
+				while (running) {
+					int dataLength = in.readInt();
+					setLastContact(System.currentTimeMillis());
+					if (dataLength == Client.PING_CALL_ID) {
+						continue; // ping message
+					}
+					processData(readData(dataLength));
+				}
+			} catch (EOFException e) {
+				// the client closed the connection
+			} catch (IOException e) {
+				if (running && !socket.isClosed()) {
+					LogUtils.log("IPC Server connection " + this + " caught: " + e);
+				}
+			} catch (InterruptedException e) {
+				if (running) {
+					LogUtils.log("IPC Server connection " + this + " interrupted");
+				}
+			} finally {
+				closeConnection(this);
+			}
+		}
+
+		private byte[] readData(int dataLength) throws IOException {
+			if (dataLength < 0 || dataLength > MAX_DATA_LENGTH) {
+				throw new IOException("Unexpected data length " + dataLength
+						+ "!! from " + getHostAddress());
+			}
+			byte[] data = new byte[dataLength];
+			in.readFully(data);
+			return data;
+		}
+
+		@Override
+		void dispatch(final Call call) throws IOException,
+				InterruptedException {
+			if (callThreads == null) {
+				super.dispatch(call);
+				return;
+			}
+			callThreads.newThread(new Runnable() {
+				public void run() {
+					handleCall(call, new DataOutputBuffer());
+				}
+			}).start();
+		}
+
+		@Override
+		void doRespond(Call call) throws IOException {
+			outLock.lock();
+			try {
+				out.write(call.response.array(), call.response.arrayOffset(),
+						call.response.remaining());
+				out.flush();
+			} finally {
+				outLock.unlock();
+			}
+			decRpcCount();
+		}
+
+		@Override
+		void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/** Handles queued calls . */
+	private class Handler extends Thread {
+		public Handler(int instanceNumber) {
+			this.setDaemon(true);
+			this.setName("IPC Server handler " + instanceNumber + " on " + port);
+		}
+
+		@Override
+		public void run() {
+			LogUtils.log(getName() + ": starting");
+			DataOutputBuffer buf = new DataOutputBuffer(INITIAL_RESP_BUF_SIZE);
+			while (running) {
+				try {
+					handleCall(callQueue.take(), buf); // pop the queue; maybe blocked here
+				} catch (InterruptedException e) {
+					if (running) { // unexpected -- log it
+						LogUtils.log(getName() + " caught: " + e);
+					}
+				}
+			}
+			LogUtils.log(getName() + ": exiting");
+		}
+
+	}
+
+	/** Runs one call and sends its response back over its connection. */
+	private void handleCall(Call call, DataOutputBuffer buf) {
+		if (call instanceof HandshakeCall) {
+			handleHandshake(call);
+			return;
+		}
+		String errorClass = null;
+		String error = null;
+		Writable value = null;
+		CurCall.set(call);
+		try {
+			// 调用具体的实现来处理这个 call
+			value = call(call.protocol, call.param, call.timestamp);
+		} catch (Throwable e) {
+			LogUtils.log(Thread.currentThread().getName() + ", call " + call
+					+ ": error: " + e);
+			errorClass = e.getClass().getName();
+			error = stringifyException(e);
+		} finally {
+			CurCall.set(null);
+		}
+		if (call.deferred != null) {
+			// call() failed after deferring: fail the call now unless the
+			// deferred response already went out
+			if (error != null) {
+				call.deferred.send(Status.ERROR, null, errorClass, error);
+			}
+			return;
+		}
+		try {
+			setupResponse(buf, call, (error == null) ? Status.SUCCESS
+					: Status.ERROR, value, errorClass, error);
+			call.connection.doRespond(call);
+			call.commitClasses();
+		} catch (Exception e) {
+			LogUtils.log(Thread.currentThread().getName() + " caught: " + e);
+		}
+	}
+
+	/** Asks for the server's version of the protocol and sends it back. */
+	private void handleHandshake(Call call) {
+		HandshakeCall handshake = (HandshakeCall) call;
+		Throwable error = handshake.error;
+		long version = ConnectionHeader.UNKNOWN_VERSION;
+		if (error == null) {
+			try {
+				version = getProtocolVersion(handshake.protocolName,
+						handshake.clientVersion);
+			} catch (Throwable e) {
+				error = e;
+			}
+		}
+		try {
+			setupHandshakeResponse(call, handshake.protocolId, version, error);
+			call.connection.doRespond(call);
+		} catch (Exception e) {
+			LogUtils.log(Thread.currentThread().getName() + " caught: " + e);
+		}
+	}
+
+	/**
+	 * 优先使用虚拟线程（JDK 21+），否则退回到普通的 daemon 线程
+	 */
+	private static ThreadFactory newThreadFactory(final String name) {
+		try {
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, name + " #", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+		} catch (Exception e) {
+			// virtual threads are not available on this JVM
+		}
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + " #" + count.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	protected Server(String bindAddress, int port,
+			Class<? extends Writable> paramClass, int handlerCount,
+			Configuration conf) throws IOException {
+		this(bindAddress, port, paramClass, handlerCount, conf, Integer
+				.toString(port));
+	}
+
+	/**
+	 * Constructs a server listening on the named port and address. Parameters
+	 * passed must be of the named class. The <code>handlerCount</code>
+	 * determines the number of handler threads that will be used to process
+	 * calls.
+	 */
+	protected Server(String bindAddress, int port,
+			Class<? extends Writable> paramClass, int handlerCount,
+			Configuration conf, String serverName) throws IOException {
+		this.bindAddress = bindAddress;
+		this.conf = conf;
+		this.port = port;
+		this.paramClass = paramClass;
+		this.handlerCount = handlerCount;
+		this.readThreads = conf.getInt("ipc.server.read.threadpool.size", 1);
+		this.maxQueueSize = conf.getInt(CALLQUEUE_SIZE_NAME, handlerCount
+				* MAX_QUEUE_SIZE_PER_HANDLER);
+		this.rejectWhenBusy = CALLQUEUE_OVERFLOW_REJECT.equals(conf.get(
+				CALLQUEUE_OVERFLOW_NAME, CALLQUEUE_OVERFLOW_BLOCK));
+		this.callQueue = newCallQueue(callQueueClass(conf), maxQueueSize, conf);
+		this.maxIdleTime = 2 * conf.getInt("ipc.client.connection.maxidletime", 1000);
+		this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
+		this.thresholdIdleConnections = conf.getInt("ipc.client.idlethreshold", 4000);
+		this.tcpNoDelay = conf.getBoolean("ipc.server.tcpnodelay", false);
+
+		String engine = conf.get(ENGINE_NAME, ENGINE_NIO);
+		if (ENGINE_THREAD.equals(engine)) {
+			blockingListener = new BlockingListener();
+			this.port = blockingListener.getAddress().getPort();
+			if (conf.getBoolean(THREAD_PER_CALL_NAME, false)) {
+				callThreads = newThreadFactory("IPC Server call on " + this.port);
+			}
+		} else if (ENGINE_NIO.equals(engine)) {
+			// Start the listener here and let it bind to the port
+			listener = new Listener();
+			this.port = listener.getAddress().getPort();
+
+			// Create the responder here
+			responder = new Responder();
+		} else {
+			throw new IllegalArgumentException("Unknown " + ENGINE_NAME + ": "
+					+ engine);
+		}
+	}
+
+	/**
+	 * cleanup connections from connectionList. Choose a random range to
+	 * scan and also have a limit on the number of the connections that will
+	 * be cleanedup per run. The criteria for cleanup is the time for which
+	 * the connection was idle. If 'force' is true then all connections will
+	 * be looked at for the cleanup.
+	 */
+	private void cleanupConnections(boolean force) {
+		if (force || numConnections > thresholdIdleConnections) {
+			long currentTime = System.currentTimeMillis();
+			if (!force && (currentTime - lastCleanupRunTime) < cleanupInterval) {
+				return;
+			}
+			int start = 0;
+			int end = numConnections - 1;
+			if (!force) {
+				start = rand.nextInt(numConnections);
+				end = rand.nextInt(numConnections);
+				int temp;
+				if (end < start) {
+					temp = start;
+					start = end;
+					end = temp;
+				}
+			}
+			int i = start;
+			int numNuked = 0;
+			while (i <= end) {
+				Connection c;
+				synchronized (connectionList) {
+					try {
+						c = connectionList.get(i);
+					} catch (Exception e) {
+						return;
+					}
+				}
+				if (c.timedOut(currentTime)) {
+					LogUtils.log("Server on " + port + ": disconnecting client "
+							+ c.getHostAddress());
+					closeConnection(c);
+					numNuked++;
+					end--;
+					c = null;
+					if (!force && numNuked == maxConnectionsToNuke) {
+						break;
+					}
+				} else {
+					i++;
+				}
+			}
+			lastCleanupRunTime = System.currentTimeMillis();
+		}
+	}
+
+
+	/**
+	 * The configured call queue class, {@link FifoCallQueue} if none is set.
+	 * 
+	 * @throws IllegalArgumentException if the configured class can't be loaded
+	 */
+	private static Class<?> callQueueClass(Configuration conf) {
+		try {
+			return conf.getClass(CALLQUEUE_IMPL_NAME, FifoCallQueue.class);
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Could not load "
+					+ CALLQUEUE_IMPL_NAME + " " + conf.get(CALLQUEUE_IMPL_NAME), e);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static CallQueue<Call> newCallQueue(Class<?> queueClass,
+			int capacity, Configuration conf) {
+		if (!CallQueue.class.isAssignableFrom(queueClass)) {
+			throw new IllegalArgumentException(queueClass + " is not a "
+					+ CallQueue.class.getName());
+		}
+		try {
+			return (CallQueue<Call>) queueClass.getConstructor(int.class,
+					Configuration.class).newInstance(capacity, conf);
+		} catch (InvocationTargetException e) {
+			throw new RuntimeException("Could not create " + queueClass, e
+					.getTargetException());
+		} catch (Exception e) {
+			throw new RuntimeException("Could not create " + queueClass, e);
+		}
+	}
+
+	private void closeConnection(Connection connection) {
+		synchronized (connectionList) {
+			if (connectionList.remove(connection)) {
+				numConnections--;
+			}
+		}
+		try {
+			connection.close();
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * Setup response for the IPC Call.
+	 *
+	 * @param response buffer to serialize the response into
+	 * @param call {@link Call} to which we are setting up the response
+	 * @param status {@link Status} of the IPC call
+	 * @param rv return value for the IPC Call, if the call was successful
+	 * @param errorClass error class, if the the call failed
+	 * @param error error message, if the call failed
+	 * @throws IOException
+	 */
+	private static void setupResponse(DataOutputBuffer response, Call call,
+			Status status, Writable rv, String errorClass, String error)
+			throws IOException {
+		response.reset();
+		response.writeInt(call.id); // write call id
+		response.writeInt(status.state); // write status
+		response.writeInt(0); // payload length, filled in below
+		call.classes = null;
+
+		if (status == Status.SUCCESS) {
+			try {
+				ClassDictionary dictionary = call.connection.dictionary;
+				if (dictionary == null) {
+					rv.write(response);
+				} else {
+					call.classes = dictionary.newOutput(response);
+					rv.write(call.classes);
+				}
+			} catch (Throwable t) {
+				LogUtils.log("Error serializing call response for call " + call);
+				setupResponse(response, call, Status.ERROR, null, t.getClass()
+						.getName(), stringifyException(t));
+				return;
+			}
+		} else {
+			UTF8.writeString(response, errorClass);
+			UTF8.writeString(response, error);
+		}
+
+		// 带上 payload 长度，客户端可以直接跳过已经不再等待的 response
+		ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(response.getData(),
+				response.getLength()));
+		buffer.putInt(8, response.getLength() - RESPONSE_HEADER_LENGTH);
+		call.setResponse(buffer);
+	}
+
+	/**
+	 * A {@link Status#BUSY} response has no payload, so it is built without
+	 * going through a serialization buffer.
+	 */
+	private static void setupBusyResponse(Call call) {
+		ByteBuffer buffer = ByteBuffer.allocate(RESPONSE_HEADER_LENGTH);
+		buffer.putInt(call.id).putInt(Status.BUSY.state).putInt(0).flip();
+		call.setResponse(buffer);
+	}
+
+	/**
+	 * The handshake's payload is the id of the protocol it answers, then
+	 * either the server's version of the protocol or, with
+	 * {@link Status#ERROR}, the error class and message.
+	 */
+	private static void setupHandshakeResponse(Call call, int protocolId,
+			long version, Throwable error) throws IOException {
+		DataOutputBuffer response = new DataOutputBuffer();
+		response.writeInt(call.id);
+		response.writeInt((error == null ? Status.SUCCESS : Status.ERROR).state);
+		response.writeInt(0); // payload length, filled in below
+		response.writeInt(protocolId);
+		if (error == null) {
+			response.writeLong(version);
+		} else {
+			UTF8.writeString(response, error.getClass().getName());
+			UTF8.writeString(response, stringifyException(error));
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(response.getData(), 0, response
+				.getLength());
+		buffer.putInt(8, response.getLength() - RESPONSE_HEADER_LENGTH);
+		call.setResponse(buffer);
+	}
+
+	private static String stringifyException(Throwable e) {
+		StringWriter stm = new StringWriter();
+		PrintWriter wrt = new PrintWriter(stm);
+		e.printStackTrace(wrt);
+		wrt.close();
+		return stm.toString();
+	}
+
+	/**
+	 * Starts the service. Must be called before any calls will be handled.
+	 */
+	public synchronized void start() {
+		if (blockingListener != null) {
+			blockingListener.start();
+		} else {
+			responder.start();
+			listener.start();
+		}
+		handlers = new Handler[handlerCount];
+
+		if (callThreads != null) {
+			return; // every call gets its own thread, no handlers needed
+		}
+		for (int i = 0; i < handlerCount; i++) {
+			handlers[i] = new Handler(i);
+			handlers[i].start();
+		}
+	}
+
+	/** Stops the service. No new calls will be handled after this is called. */
+	public synchronized void stop() {
+		LogUtils.log("Stopping server on " + port);
+		running = false;
+		if (handlers != null) {
+			for (int i = 0; i < handlerCount; i++) {
+				if (handlers[i] != null) {
+					handlers[i].interrupt();
+				}
+			}
+		}
+		if (blockingListener != null) {
+			blockingListener.interrupt();
+			blockingListener.doStop();
+		} else {
+			listener.interrupt();
+			listener.doStop();
+			responder.interrupt();
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Wait for the server to be stopped. Does not wait for all subthreads to
+	 * finish. See {@link #stop()}.
+	 */
+	public synchronized void join() throws InterruptedException {
+		while (running) {
+			wait();
+		}
+	}
+
+	/**
+	 * Return the socket (ip+port) on which the RPC server is listening to.
+	 *
+	 * @return the socket (ip+port) on which the RPC server is listening to.
+	 */
+	public synchronized InetSocketAddress getListenerAddress() {
+		return (blockingListener != null) ? blockingListener.getAddress()
+				: listener.getAddress();
+	}
+
+	/** Called for each call. */
+	public abstract Writable call(Class<?> protocol, Writable param,
+			long receiveTime) throws IOException;
+
+	/**
+	 * Called once per connection whose header carries a client version; the
+	 * result is sent back in the handshake. Servers that know nothing about
+	 * versions answer {@link ConnectionHeader#UNKNOWN_VERSION}.
+	 *
+	 * @param protocol the protocol name from the connection header, or null
+	 * @param clientVersion the client's version of the protocol
+	 */
+	protected long getProtocolVersion(String protocol, long clientVersion)
+			throws IOException {
+		return ConnectionHeader.UNKNOWN_VERSION;
+	}
+
+	/**
+	 * The number of open RPC connections
+	 *
+	 * @return the number of open rpc connections
+	 */
+	public int getNumOpenConnections() {
+		return numConnections;
+	}
+
+	/**
+	 * The number of rpc calls in the queue.
+	 *
+	 * @return The number of rpc calls in the queue.
+	 */
+	public int getCallQueueLen() {
+		return callQueue.size();
+	}
+
+	/**
+	 * This is a wrapper around {@link WritableByteChannel#write(ByteBuffer)}.
+	 * If the amount of data is large, it writes to channel in smaller chunks.
+	 * This is to avoid jdk from creating many direct buffers as the size of
+	 * buffer increases. This also minimizes extra copies in NIO layer as a
+	 * result of multiple write operations required to write a large buffer.
+	 *
+	 * @see WritableByteChannel#write(ByteBuffer)
+	 */
+	private static int channelWrite(WritableByteChannel channel,
+			ByteBuffer buffer) throws IOException {
+		return (buffer.remaining() <= NIO_BUFFER_LIMIT) ? channel.write(buffer)
+				: channelIO(null, channel, buffer);
+	}
+
+	/**
+	 * This is a wrapper around {@link ReadableByteChannel#read(ByteBuffer)}.
+	 * If the amount of data is large, it writes to channel in smaller chunks.
+	 * This is to avoid jdk from creating many direct buffers as the size of
+	 * ByteBuffer increases. There should not be any performance degredation.
+	 *
+	 * @see ReadableByteChannel#read(ByteBuffer)
+	 */
+	private static int channelRead(ReadableByteChannel channel,
+			ByteBuffer buffer) throws IOException {
+		return (buffer.remaining() <= NIO_BUFFER_LIMIT) ? channel.read(buffer)
+				: channelIO(channel, null, buffer);
+	}
+
+	/**
+	 * Helper for {@link #channelRead(ReadableByteChannel, ByteBuffer)} and
+	 * {@link #channelWrite(WritableByteChannel, ByteBuffer)}. Only one of
+	 * readCh or writeCh should be non-null.
+	 *
+	 * @see #channelRead(ReadableByteChannel, ByteBuffer)
+	 * @see #channelWrite(WritableByteChannel, ByteBuffer)
+	 */
+	private static int channelIO(ReadableByteChannel readCh,
+			WritableByteChannel writeCh, ByteBuffer buf) throws IOException {
+		int originalLimit = buf.limit();
+		int initialRemaining = buf.remaining();
+		int ret = 0;
+
+		while (buf.remaining() > 0) {
+			try {
+				int ioSize = Math.min(buf.remaining(), NIO_BUFFER_LIMIT);
+				buf.limit(buf.position() + ioSize);
+
+				ret = (readCh == null) ? writeCh.write(buf) : readCh.read(buf);
+
+				if (ret < ioSize) {
+					break;
+				}
+
+			} finally {
+				buf.limit(originalLimit);
+			}
+		}
 
+		int nBytes = initialRemaining - buf.remaining();
+		return (nBytes > 0) ? nBytes : ret;
+	}
 }
@@ -0,0 +1,19 @@
+package java.wody.ipc;
+
+import java.io.IOException;
+
+/**
+ * 服务端的 call 队列已满，call 被直接拒绝而没有执行
+ * 
+ * 与其它 IOException 不同，这个异常说明请求根本没有被处理，
+ * 调用者可以在退避一段时间之后安全地重试
+ */
+public class ServerBusyException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ServerBusyException(String message) {
+		super(message);
+	}
+
+}
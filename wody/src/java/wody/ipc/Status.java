@@ -0,0 +1,17 @@
+package java.wody.ipc;
+
+/**
+ * 一次 IPC 调用的状态
+ */
+enum Status {
+	SUCCESS(0), 
+	ERROR(1), 
+	BUSY(2),   // the call was rejected because the server's call queue was full
+	FATAL(-1);
+
+	int state;
+
+	private Status(int state) {
+		this.state = state;
+	}
+}
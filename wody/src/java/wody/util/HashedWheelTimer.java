@@ -0,0 +1,218 @@
+package java.wody.util;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.wody.LogUtils;
+
+/**
+ * 哈希时间轮
+ * 
+ * <p>大量的超时任务共用一个线程：加入和取消一个任务都是 O(1) 的，
+ * 代价是超时的精度只到一个 tick。适合像 call 超时这样绝大多数都会在
+ * 到期之前被取消的任务。
+ * 
+ * <p>新任务先放进一个无锁队列，由 worker 线程在每个 tick 把它们分到
+ * 轮上的各个槽中，所以槽本身只有 worker 线程访问，不需要同步。
+ * 被取消的任务留在槽中，直到 worker 走到这个槽时才移除。
+ */
+public class HashedWheelTimer {
+
+	/** A handle to a scheduled task. */
+	public interface Timeout {
+
+		/**
+		 * Cancel the task.
+		 * 
+		 * @return false if the task already ran or was already cancelled
+		 */
+		boolean cancel();
+	}
+
+	private static final int ST_INIT = 0;
+	private static final int ST_STARTED = 1;
+	private static final int ST_STOPPED = 2;
+
+	private final long tickNanos;
+	private final LinkedList<Task>[] wheel;
+	private final int mask;
+	private final ConcurrentLinkedQueue<Task> pending =
+		new ConcurrentLinkedQueue<Task>();
+	private final Thread worker;
+	private final AtomicInteger state = new AtomicInteger(ST_INIT);
+	private volatile long startTime;
+
+	/**
+	 * @param name name of the worker thread
+	 * @param tick duration of a tick
+	 * @param unit unit of tick
+	 * @param ticksPerWheel number of slots, rounded up to a power of two
+	 */
+	@SuppressWarnings("unchecked")
+	public HashedWheelTimer(String name, long tick, TimeUnit unit,
+			int ticksPerWheel) {
+		if (tick <= 0 || ticksPerWheel <= 0) {
+			throw new IllegalArgumentException("tick and ticksPerWheel must be "
+					+ "positive: " + tick + ", " + ticksPerWheel);
+		}
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.wheel = (LinkedList<Task>[]) new LinkedList<?>[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new LinkedList<Task>();
+		}
+		this.mask = size - 1;
+		this.tickNanos = unit.toNanos(tick);
+
+		this.worker = new Thread(new Worker(), name);
+		this.worker.setDaemon(true);
+	}
+
+	/**
+	 * Run the task once after the given delay. The worker thread is started
+	 * by the first call.
+	 * 
+	 * @throws IllegalStateException if the timer has been stopped
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Task t = new Task(task, System.nanoTime() + unit.toNanos(delay)
+				- startTime);
+		pending.add(t);
+		return t;
+	}
+
+	private void start() {
+		if (state.compareAndSet(ST_INIT, ST_STARTED)) {
+			synchronized (this) {
+				long now = System.nanoTime();
+				startTime = now == 0 ? 1 : now; // 0 means not started yet
+				worker.start();
+				notifyAll();
+			}
+		}
+		if (state.get() == ST_STOPPED) {
+			throw new IllegalStateException("Timer is stopped");
+		}
+		if (startTime == 0) {
+			// 另一个线程正在启动 worker
+			synchronized (this) {
+				while (startTime == 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new IllegalStateException("Interrupted while "
+								+ "starting the timer");
+					}
+				}
+			}
+		}
+	}
+
+	/** Stop the worker thread. Tasks that have not run yet never will. */
+	public void stop() {
+		if (state.getAndSet(ST_STOPPED) == ST_STARTED) {
+			worker.interrupt();
+		}
+	}
+
+	private class Worker implements Runnable {
+
+		private long tick;
+
+		public void run() {
+			while (state.get() == ST_STARTED) {
+				if (!waitForNextTick()) {
+					break;
+				}
+				transferPending();
+				expire(wheel[(int) (tick & mask)]);
+				tick++;
+			}
+		}
+
+		private boolean waitForNextTick() {
+			long deadline = startTime + tickNanos * (tick + 1);
+			for (;;) {
+				long sleepNanos = deadline - System.nanoTime();
+				if (sleepNanos <= 0) {
+					return true;
+				}
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (InterruptedException e) {
+					if (state.get() != ST_STARTED) {
+						return false;
+					}
+				}
+			}
+		}
+
+		private void transferPending() {
+			Task t;
+			while ((t = pending.poll()) != null) {
+				if (t.state.get() != Task.ST_WAITING) {
+					continue;
+				}
+				long calculated = t.deadline / tickNanos;
+				t.rounds = (calculated - tick) / wheel.length;
+				// 已经过期的任务放到当前槽，马上执行
+				long ticks = Math.max(calculated, tick);
+				wheel[(int) (ticks & mask)].add(t);
+			}
+		}
+
+		private void expire(LinkedList<Task> bucket) {
+			Iterator<Task> it = bucket.iterator();
+			while (it.hasNext()) {
+				Task t = it.next();
+				if (t.state.get() != Task.ST_WAITING) {
+					it.remove();
+				} else if (t.rounds <= 0) {
+					it.remove();
+					t.expire();
+				} else {
+					t.rounds--;
+				}
+			}
+		}
+	}
+
+	private static class Task implements Timeout {
+
+		static final int ST_WAITING = 0;
+		static final int ST_CANCELLED = 1;
+		static final int ST_EXPIRED = 2;
+
+		final Runnable task;
+		final long deadline; // relative to startTime
+		long rounds; // only accessed by the worker
+		final AtomicInteger state = new AtomicInteger(ST_WAITING);
+
+		Task(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public boolean cancel() {
+			return state.compareAndSet(ST_WAITING, ST_CANCELLED);
+		}
+
+		void expire() {
+			if (!state.compareAndSet(ST_WAITING, ST_EXPIRED)) {
+				return;
+			}
+			try {
+				task.run();
+			} catch (Throwable e) {
+				LogUtils.log(e);
+			}
+		}
+	}
+
+}
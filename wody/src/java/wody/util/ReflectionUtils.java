@@ -1,14 +1,116 @@
 package java.wody.util;
 
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.function.Supplier;
+import java.wody.conf.Configurable;
 import java.wody.conf.Configuration;
 import java.wody.io.Writable;
 
 public class ReflectionUtils {
 
+	private static final Class<?>[] EMPTY_ARRAY = new Class<?>[0];
+
+	/**
+	 * A no-arg constructor of each class, as a {@link Supplier}. It is built
+	 * the first time the class is instantiated; after that creating an
+	 * instance is a call to a generated Supplier that just does
+	 * <code>new</code>.
+	 * 
+	 * <p>The Supplier references the class, but a {@link ClassValue} keeps it
+	 * with the class itself, so it does not keep an otherwise unreachable
+	 * class from being unloaded. It works the other way round: the class of
+	 * the Supplier is defined by the loader of ReflectionUtils, so a class
+	 * from a parent loader keeps that loader reachable for as long as the
+	 * class lives.
+	 */
+	private static final ClassValue<Supplier<?>> CONSTRUCTORS =
+		new ClassValue<Supplier<?>>() {
+			@Override
+			protected Supplier<?> computeValue(Class<?> c) {
+				return newSupplier(c);
+			}
+		};
+
+	/**
+	 * Create an object for the given class and initialize it from conf
+	 *
+	 * @param c class of which an object is created
+	 * @param conf Configuration
+	 * @return a new object
+	 */
 	public static Writable newInstance(Class<? extends Writable> c,
 			Configuration conf) {
-		// TODO Auto-generated method stub
-		return null;
+		Writable result = (Writable) CONSTRUCTORS.get(c).get();
+		setConf(result, conf);
+		return result;
+	}
+
+	/**
+	 * Spins a Supplier for the no-arg constructor through
+	 * {@link LambdaMetafactory} when our lookup can reach it, otherwise falls
+	 * back to calling the constructor reflectively.
+	 */
+	private static Supplier<?> newSupplier(Class<?> c) {
+		final Constructor<?> constructor;
+		try {
+			constructor = c.getDeclaredConstructor(EMPTY_ARRAY);
+		} catch (NoSuchMethodException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (Modifier.isPublic(c.getModifiers())
+				&& Modifier.isPublic(constructor.getModifiers())
+				&& !Modifier.isAbstract(c.getModifiers()) && isVisible(c)) {
+			try {
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+				MethodHandle handle = lookup.unreflectConstructor(constructor);
+				return (Supplier<?>) LambdaMetafactory.metafactory(lookup, "get",
+						MethodType.methodType(Supplier.class),
+						MethodType.methodType(Object.class), handle,
+						MethodType.methodType(c)).getTarget().invoke();
+			} catch (Throwable t) {
+				// 例如嵌套在非 public 类中的类，退回到反射
+			}
+		}
+
+		constructor.setAccessible(true);
+		return new Supplier<Object>() {
+			public Object get() {
+				try {
+					return constructor.newInstance();
+				} catch (InvocationTargetException e) {
+					throw new RuntimeException(e.getCause());
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * True if our classloader resolves the name to the same class, so that a
+	 * class generated next to ReflectionUtils can link against it.
+	 */
+	private static boolean isVisible(Class<?> c) {
+		try {
+			return Class.forName(c.getName(), false, ReflectionUtils.class
+					.getClassLoader()) == c;
+		} catch (ClassNotFoundException e) {
+			return false;
+		}
+	}
+
+	/** Check and set 'configuration' if necessary. */
+	public static void setConf(Object theObject, Configuration conf) {
+		if (conf != null && theObject instanceof Configurable) {
+			((Configurable) theObject).setConf(conf);
+		}
 	}
 
 }
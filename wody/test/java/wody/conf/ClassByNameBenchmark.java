@@ -0,0 +1,90 @@
+package java.wody.conf;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.wody.io.DataOutputBuffer;
+import java.wody.io.ObjectWritable;
+import java.wody.io.Writable;
+import java.wody.util.Throughput;
+
+/**
+ * 多个线程同时用 {@link ObjectWritable#readObject} 解码同一个值时类名解析的
+ * 开销：每次都 Class.forName，以及 {@link Configuration#getClassByName} 的
+ * 缓存。解码一个声明为接口的 Writable 要解析两个类名。另外比较一个不存在
+ * 的类名，它走的是否定缓存
+ *
+ * <pre>
+ * java java.wody.conf.ClassByNameBenchmark [millis]
+ * </pre>
+ */
+public class ClassByNameBenchmark {
+
+	public static class Value implements Writable {
+
+		private long value;
+
+		public void write(DataOutput out) throws IOException {
+			out.writeLong(value);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			value = in.readLong();
+		}
+	}
+
+	/** Resolves every name with Class.forName, as before the cache. */
+	private static class ForNameConfiguration extends Configuration {
+
+		@Override
+		public Class<?> getClassByName(String clsName)
+				throws ClassNotFoundException {
+			return Class.forName(clsName, true, getClassLoader());
+		}
+
+		@Override
+		public Class<?> getClassByNameOrNull(String clsName) {
+			try {
+				return getClassByName(clsName);
+			} catch (ClassNotFoundException e) {
+				return null;
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+		DataOutputBuffer out = new DataOutputBuffer();
+		ObjectWritable.writeObject(out, new Value(), Writable.class,
+				new Configuration());
+		final byte[] encoded = new byte[out.getLength()];
+		System.arraycopy(out.getData(), 0, encoded, 0, encoded.length);
+		final String missing = ClassByNameBenchmark.class.getName() + "$Missing";
+
+		for (int threads : new int[] { 1, 8 }) {
+			for (final Configuration conf : new Configuration[] {
+					new ForNameConfiguration(), new Configuration() }) {
+				String name = conf instanceof ForNameConfiguration ? "Class.forName"
+						: "getClassByName";
+				Throughput.report("decode, " + name, threads, millis,
+						new Throughput.Op() {
+							public void run(int thread) throws IOException {
+								Throughput.sink = ObjectWritable.readObject(
+										new DataInputStream(new ByteArrayInputStream(
+												encoded)), null, conf);
+							}
+						});
+				Throughput.report("missing class, " + name, threads, millis,
+						new Throughput.Op() {
+							public void run(int thread) {
+								Throughput.sink = conf.getClassByNameOrNull(missing);
+							}
+						});
+			}
+		}
+	}
+
+}
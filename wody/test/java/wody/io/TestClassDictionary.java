@@ -0,0 +1,188 @@
+package java.wody.io;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.wody.conf.Configuration;
+
+import org.junit.Test;
+
+/**
+ * {@link ObjectWritable} 经过与不经过 {@link ClassDictionary} 写出再读回，
+ * 以及字典中的 id 只在对方已经收到定义之后才被使用
+ */
+public class TestClassDictionary {
+
+	public static class Value implements Writable {
+
+		private int value;
+
+		public Value() {
+		}
+
+		public Value(int value) {
+			this.value = value;
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			value = in.readInt();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Value && ((Value) o).value == value;
+		}
+
+		@Override
+		public int hashCode() {
+			return value;
+		}
+	}
+
+	public enum Color {
+		RED, GREEN
+	}
+
+	private final Configuration conf = new Configuration();
+
+	// 两次写出一个 Value 和一个 Value[]，第二次时两个类都已出现过
+	private final Object[] instances = { new Value(1), new Value[] {
+			new Value(2), new Value(3) }, "text", Integer.valueOf(4),
+			Color.GREEN, new Value(5), new Value[] { new Value(6) } };
+	private final Class<?>[] declared = { Writable.class, Value[].class,
+			String.class, Integer.TYPE, Color.class, Value.class, Value[].class };
+
+	@Test
+	public void testRoundTripWithoutDictionary() throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		for (int i = 0; i < instances.length; i++) {
+			ObjectWritable.writeObject(out, instances[i], declared[i], conf);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				out.getData(), 0, out.getLength()));
+		for (int i = 0; i < instances.length; i++) {
+			assertRead(instances[i], in);
+		}
+		assertEquals(-1, in.read());
+	}
+
+	@Test
+	public void testRoundTripWithDictionary() throws IOException {
+		ClassDictionary writer = new ClassDictionary();
+		ClassDictionary reader = new ClassDictionary();
+		// 同一组对象写成两个 frame，第一个定义了类，第二个只用 id
+		byte[] first = frame(writer, instances, declared, true);
+		byte[] second = frame(writer, instances, declared, true);
+		assertTrue(second.length < first.length);
+
+		for (byte[] frame : new byte[][] { first, second }) {
+			ClassDictionary.Input in = reader.newInput(new ByteArrayInputStream(
+					frame));
+			for (int i = 0; i < instances.length; i++) {
+				assertRead(instances[i], in);
+			}
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void testRepeatedClassInOneFrame() throws IOException {
+		ClassDictionary writer = new ClassDictionary();
+		byte[] once = frame(writer, new Object[] { new Value(1) },
+				new Class<?>[] { Value.class }, false);
+		byte[] twice = frame(writer, new Object[] { new Value(1), new Value(2) },
+				new Class<?>[] { Value.class, Value.class }, false);
+		// 同一个 frame 中第二次出现的类只写 id，比第一次短
+		assertTrue(twice.length - once.length < once.length);
+
+		ClassDictionary.Input in = new ClassDictionary().newInput(
+				new ByteArrayInputStream(twice));
+		assertEquals(new Value(1), ObjectWritable.readObject(in, null, conf));
+		assertEquals(new Value(2), ObjectWritable.readObject(in, null, conf));
+	}
+
+	@Test
+	public void testUncommittedFrameRepeatsDefinition() throws IOException {
+		ClassDictionary writer = new ClassDictionary();
+		Object[] value = { new Value(7) };
+		Class<?>[] valueClass = { Value.class };
+		byte[] first = frame(writer, value, valueClass, false);
+		// 第一个 frame 还没有 commit，对方可能还没收到它，第二个 frame 再带一次定义
+		byte[] second = frame(writer, value, valueClass, true);
+		assertArrayEquals(first, second);
+
+		ClassDictionary.Input in = new ClassDictionary().newInput(
+				new ByteArrayInputStream(second));
+		assertEquals(value[0], ObjectWritable.readObject(in, null, conf));
+	}
+
+	@Test
+	public void testCommittedIdNeedsDefinition() throws IOException {
+		ClassDictionary writer = new ClassDictionary();
+		Object[] value = { new Value(8) };
+		Class<?>[] valueClass = { Value.class };
+		frame(writer, value, valueClass, true);
+		byte[] idOnly = frame(writer, value, valueClass, true);
+
+		// 没有读过定义的一方不认识这个 id
+		ClassDictionary.Input in = new ClassDictionary().newInput(
+				new ByteArrayInputStream(idOnly));
+		try {
+			ObjectWritable.readObject(in, null, conf);
+			fail("Read a class id that was never defined");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith(
+					"Undefined class id"));
+		}
+	}
+
+	@Test
+	public void testPredefinedClassesNeedNoDefinition() throws IOException {
+		byte[] frame = frame(new ClassDictionary(), new Object[] { "s",
+				Long.valueOf(9) }, new Class<?>[] { String.class, Long.TYPE },
+				false);
+		// String 与原始类型的 id 固定，一个字节，不需要定义
+		assertEquals(1 + 3 + 1 + 8, frame.length);
+
+		ClassDictionary.Input in = new ClassDictionary().newInput(
+				new ByteArrayInputStream(frame));
+		assertEquals("s", ObjectWritable.readObject(in, null, conf));
+		assertEquals(Long.valueOf(9), ObjectWritable.readObject(in, null, conf));
+	}
+
+	private void assertRead(Object expected, DataInput in) throws IOException {
+		Object actual = ObjectWritable.readObject(in, null, conf);
+		// 数组逐个元素比较
+		assertTrue(expected + " != " + actual, Arrays.deepEquals(
+				new Object[] { expected }, new Object[] { actual }));
+	}
+
+	/** Serializes one frame through <code>dictionary</code>. */
+	private byte[] frame(ClassDictionary dictionary, Object[] instances,
+			Class<?>[] declared, boolean commit) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ClassDictionary.Output out = dictionary.newOutput(bytes);
+		for (int i = 0; i < instances.length; i++) {
+			ObjectWritable.writeObject(out, instances[i], declared[i], conf);
+		}
+		out.flush();
+		if (commit) {
+			out.commit();
+		}
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,179 @@
+package java.wody.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.wody.conf.Configuration;
+
+import org.junit.Test;
+
+/**
+ * 原始类型数组与对象数组经 {@link ObjectWritable} 写出再读回，包括空数组、
+ * 跨越多个 chunk 的数组、null 数组与 null 元素，以及损坏的数组长度
+ */
+public class TestObjectWritable {
+
+	private final Configuration conf = new Configuration();
+
+	@Test
+	public void testPrimitiveArrays() throws IOException {
+		// 100000 个元素的数组在每种类型上都跨越多个 64K 的 chunk
+		for (int length : new int[] { 0, 1, 3, 100000 }) {
+			boolean[] booleans = new boolean[length];
+			byte[] bytes = new byte[length];
+			char[] chars = new char[length];
+			short[] shorts = new short[length];
+			int[] ints = new int[length];
+			long[] longs = new long[length];
+			float[] floats = new float[length];
+			double[] doubles = new double[length];
+			for (int i = 0; i < length; i++) {
+				booleans[i] = i % 3 == 0;
+				bytes[i] = (byte) i;
+				chars[i] = (char) (i * 7);
+				shorts[i] = (short) -i;
+				ints[i] = i * 31 - length;
+				longs[i] = (long) i << 33 | i;
+				floats[i] = i / 3f;
+				doubles[i] = -i / 7.0;
+			}
+			Object[] arrays = { booleans, bytes, chars, shorts, ints, longs,
+					floats, doubles };
+			for (Object array : arrays) {
+				assertRoundTrip(array, array.getClass());
+			}
+		}
+	}
+
+	@Test
+	public void testNullArrays() throws IOException {
+		for (Class<?> c : new Class<?>[] { int[].class, byte[].class,
+				String[].class, long[][].class }) {
+			ObjectWritable read = roundTrip(null, c);
+			assertNull(read.get());
+			assertSame(c, read.getDeclaredClass());
+		}
+	}
+
+	@Test
+	public void testNullElements() throws IOException {
+		assertRoundTrip(new String[] { "a", null, "", null }, String[].class);
+		assertRoundTrip(new String[0], String[].class);
+		assertRoundTrip(new int[][] { { 1, 2 }, null, {} }, int[][].class);
+		assertRoundTrip(new Writable[] { null,
+				new TestClassDictionary.Value(1) }, Writable[].class);
+	}
+
+	@Test
+	public void testNegativeLength() throws IOException {
+		for (Class<?> c : new Class<?>[] { int[].class, byte[].class,
+				boolean[].class, String[].class }) {
+			byte[] data = withLength(c, -1);
+			try {
+				read(data, conf);
+				fail("Read an array of length -1 as " + c);
+			} catch (IOException e) {
+				assertTrue(e.getMessage(), e.getMessage().startsWith(
+						"Negative array length"));
+			}
+		}
+	}
+
+	@Test
+	public void testLengthOverLimit() throws IOException {
+		Configuration small = new Configuration();
+		small.setInt(ObjectWritable.MAX_ARRAY_BYTES_NAME, 16);
+		// 4 个 int 正好 16 字节，5 个超过
+		ObjectWritable ok = new ObjectWritable();
+		ok.setConf(small);
+		ok.readFields(input(write(new int[4], int[].class)));
+		assertTrue(Arrays.equals(new int[4], (int[]) ok.get()));
+		try {
+			read(write(new int[5], int[].class), small);
+			fail("Read an int[5] over a 16 byte limit");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(
+					ObjectWritable.MAX_ARRAY_BYTES_NAME));
+		}
+		// 一个大到溢出 int 的 long[] 长度
+		try {
+			read(withLength(long[].class, Integer.MAX_VALUE), conf);
+			fail("Read a long[Integer.MAX_VALUE]");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(
+					ObjectWritable.MAX_ARRAY_BYTES_NAME));
+		}
+	}
+
+	@Test
+	public void testLengthBeyondData() throws IOException {
+		// 长度在限制之内，但后面没有那么多数据
+		for (Class<?> c : new Class<?>[] { int[].class, byte[].class,
+				double[].class }) {
+			try {
+				read(withLength(c, 1000000), conf);
+				fail("Read past the end of the data as " + c);
+			} catch (EOFException e) {
+				// expected
+			}
+		}
+	}
+
+	private void assertRoundTrip(Object instance, Class<?> declaredClass)
+			throws IOException {
+		ObjectWritable read = roundTrip(instance, declaredClass);
+		assertSame(declaredClass, read.getDeclaredClass());
+		// 数组逐个元素比较
+		assertTrue(declaredClass.getSimpleName() + " of "
+				+ Array.getLength(instance),
+				Arrays.deepEquals(new Object[] { instance },
+						new Object[] { read.get() }));
+	}
+
+	private ObjectWritable roundTrip(Object instance, Class<?> declaredClass)
+			throws IOException {
+		ObjectWritable read = new ObjectWritable();
+		read.setConf(conf);
+		read.readFields(input(write(instance, declaredClass)));
+		return read;
+	}
+
+	private Object read(byte[] data, Configuration conf) throws IOException {
+		return ObjectWritable.readObject(input(data), null, conf);
+	}
+
+	private byte[] write(Object instance, Class<?> declaredClass)
+			throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		ObjectWritable.writeObject(out, instance, declaredClass, conf);
+		return Arrays.copyOf(out.getData(), out.getLength());
+	}
+
+	/** An empty array of the class, with its length field replaced. */
+	private byte[] withLength(Class<?> arrayClass, int length)
+			throws IOException {
+		byte[] data = write(Array.newInstance(
+				arrayClass.getComponentType(), 0), arrayClass);
+		// 空数组以 4 字节的长度结尾
+		int off = data.length - 4;
+		data[off] = (byte) (length >>> 24);
+		data[off + 1] = (byte) (length >>> 16);
+		data[off + 2] = (byte) (length >>> 8);
+		data[off + 3] = (byte) length;
+		return data;
+	}
+
+	private static DataInputStream input(byte[] data) {
+		return new DataInputStream(new ByteArrayInputStream(data));
+	}
+
+}
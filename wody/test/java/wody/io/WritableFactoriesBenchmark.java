@@ -0,0 +1,74 @@
+package java.wody.io;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.wody.util.Throughput;
+
+/**
+ * 多个线程同时通过 {@link WritableFactories} 创建实例，这是服务端解码每个
+ * 对象时的路径。比较改动之前 static synchronized 的 HashMap 与现在不加锁的
+ * 查找
+ *
+ * <pre>
+ * java java.wody.io.WritableFactoriesBenchmark [millis]
+ * </pre>
+ */
+public class WritableFactoriesBenchmark {
+
+	public static class Value implements Writable {
+
+		public void write(DataOutput out) throws IOException {
+		}
+
+		public void readFields(DataInput in) throws IOException {
+		}
+	}
+
+	private static final WritableFactory FACTORY = new WritableFactory() {
+		public Writable newInstance() {
+			return new Value();
+		}
+	};
+
+	/** The registry as it was: every lookup takes the class monitor. */
+	private static class SynchronizedFactories {
+
+		private static final HashMap<Class<?>, WritableFactory> CLASS_TO_FACTORY =
+			new HashMap<Class<?>, WritableFactory>();
+
+		static synchronized void setFactory(Class<?> c, WritableFactory factory) {
+			CLASS_TO_FACTORY.put(c, factory);
+		}
+
+		static synchronized WritableFactory getFactory(Class<?> c) {
+			return CLASS_TO_FACTORY.get(c);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+		SynchronizedFactories.setFactory(Value.class, FACTORY);
+		WritableFactories.setFactory(Value.class, FACTORY);
+
+		for (int threads : new int[] { 1, 16, 64 }) {
+			Throughput.report("synchronized HashMap", threads, millis,
+					new Throughput.Op() {
+						public void run(int thread) {
+							Throughput.sink = SynchronizedFactories.getFactory(
+									Value.class).newInstance();
+						}
+					});
+			Throughput.report("WritableFactories", threads, millis,
+					new Throughput.Op() {
+						public void run(int thread) {
+							Throughput.sink = WritableFactories.getFactory(
+									Value.class).newInstance();
+						}
+					});
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package java.wody.ipc;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.wody.conf.Configuration;
+import java.wody.io.Writable;
+
+import javax.net.SocketFactory;
+
+/**
+ * 同步 call 在回环地址上的延迟：调用线程直接 park，以及先自旋
+ * {@link Client#CALL_SPIN_NAME} 次再 park。一个调用线程依次发出 call，
+ * 给出延迟的中位数与 99 分位
+ *
+ * <pre>
+ * java java.wody.ipc.CallLatencyBenchmark [calls]
+ * </pre>
+ */
+public class CallLatencyBenchmark {
+
+	/** Four bytes each way, so the time is spent in the call machinery. */
+	public static class IntValue implements Writable {
+
+		private int value;
+
+		public IntValue() {
+		}
+
+		public IntValue(int value) {
+			this.value = value;
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeInt(value);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			value = in.readInt();
+		}
+	}
+
+	private interface Echo {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int calls = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+
+		Configuration conf = new Configuration();
+		Server server = new Server("127.0.0.1", 0, IntValue.class, 1, conf) {
+			@Override
+			public Writable call(Class<?> protocol, Writable param,
+					long receiveTime) {
+				return param;
+			}
+		};
+		server.start();
+		try {
+			InetSocketAddress address = server.getListenerAddress();
+			for (int spin : new int[] { 0, 10000 }) {
+				run(address, spin, calls);
+			}
+		} finally {
+			server.stop();
+		}
+	}
+
+	private static void run(InetSocketAddress address, int spin, int calls)
+			throws Exception {
+		Configuration conf = new Configuration();
+		conf.setInt(Client.CALL_SPIN_NAME, spin);
+		Client client = new Client(IntValue.class, SocketFactory.getDefault(),
+				conf);
+		try {
+			IntValue param = new IntValue(1);
+			for (int i = 0; i < calls / 2; i++) { // warm-up
+				client.call(param, address, Echo.class);
+			}
+			long[] nanos = new long[calls];
+			for (int i = 0; i < calls; i++) {
+				long start = System.nanoTime();
+				client.call(param, address, Echo.class);
+				nanos[i] = System.nanoTime() - start;
+			}
+			Arrays.sort(nanos);
+			System.out.println(String.format(
+					"%s=%-6d median %,8d ns  p99 %,10d ns", Client.CALL_SPIN_NAME,
+					spin, nanos[calls / 2], nanos[calls * 99 / 100]));
+		} finally {
+			client.stop();
+		}
+	}
+
+}
@@ -0,0 +1,73 @@
+package java.wody.ipc;
+
+import java.util.Hashtable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.wody.conf.Configuration;
+import java.wody.io.Writable;
+import java.wody.util.Throughput;
+
+import javax.net.SocketFactory;
+
+/**
+ * 比较一个 connection 上 call 的登记与移除：改动之前的 synchronized 计数器
+ * 加 Hashtable&lt;Integer, Call&gt;，以及现在的原子计数器加
+ * {@link Client.CallTable}。所有线程共用一张表，和 pool 中只有一个
+ * connection 时一样
+ *
+ * <pre>
+ * java java.wody.ipc.CallTableBenchmark [millis]
+ * </pre>
+ */
+public class CallTableBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+		Client client = new Client(Writable.class, SocketFactory.getDefault(),
+				new Configuration());
+		try {
+			for (int threads : new int[] { 1, 8, 64 }) {
+				run(client, threads, millis);
+			}
+		} finally {
+			client.stop();
+		}
+	}
+
+	private static void run(Client client, int threads, long millis)
+			throws InterruptedException {
+		// 每个线程反复使用自己的一个 call，只改变它的 id
+		final Client.Call[] calls = new Client.Call[threads];
+		for (int i = 0; i < threads; i++) {
+			calls[i] = client.new Call(null);
+		}
+
+		final Object lock = new Object();
+		final int[] counter = new int[1];
+		final Hashtable<Integer, Client.Call> hashtable =
+			new Hashtable<Integer, Client.Call>();
+		Throughput.report("synchronized id + Hashtable", threads, millis,
+				new Throughput.Op() {
+					public void run(int thread) {
+						Client.Call call = calls[thread];
+						synchronized (lock) {
+							call.id = counter[0]++;
+						}
+						hashtable.put(call.id, call);
+						Throughput.sink = hashtable.remove(call.id);
+					}
+				});
+
+		final AtomicInteger ids = new AtomicInteger();
+		final Client.CallTable table = new Client.CallTable();
+		Throughput.report("atomic id + CallTable", threads, millis,
+				new Throughput.Op() {
+					public void run(int thread) {
+						Client.Call call = calls[thread];
+						call.id = ids.getAndIncrement() & Integer.MAX_VALUE;
+						table.put(call);
+						Throughput.sink = table.remove(call.id);
+					}
+				});
+	}
+
+}
@@ -0,0 +1,71 @@
+package java.wody.ipc;
+
+import java.lang.reflect.Method;
+import java.wody.util.Throughput;
+
+/**
+ * 比较 RPC.Server 执行一个 Invocation 的两种方式：每次按名字反射查找方法再
+ * Method.invoke，以及 {@link MethodDispatcher} 的查表加 MethodHandle 调用
+ *
+ * <pre>
+ * java java.wody.ipc.MethodDispatcherBenchmark [millis]
+ * </pre>
+ */
+public class MethodDispatcherBenchmark {
+
+	public interface Calculator {
+
+		int add(int a, int b);
+
+		long sum(long[] values);
+	}
+
+	public static class CalculatorImpl implements Calculator {
+
+		public int add(int a, int b) {
+			return a + b;
+		}
+
+		public long sum(long[] values) {
+			long sum = 0;
+			for (long v : values) {
+				sum += v;
+			}
+			return sum;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+
+		final Object instance = new CalculatorImpl();
+		final MethodDispatcher dispatcher = new MethodDispatcher(instance);
+		final String methodName = "add";
+		final Class<?>[] paramClasses = { int.class, int.class };
+		final Object[] parameters = { 1, 2 };
+
+		for (int threads : new int[] { 1, 8 }) {
+			Throughput.report("Method.invoke", threads, millis,
+					new Throughput.Op() {
+						public void run(int thread) throws Exception {
+							// 改动之前 RPC.Server.call 的做法
+							Method method = instance.getClass().getMethod(
+									methodName, paramClasses);
+							Throughput.sink = method.invoke(instance, parameters);
+						}
+					});
+			Throughput.report("MethodDispatcher", threads, millis,
+					new Throughput.Op() {
+						public void run(int thread) throws Exception {
+							try {
+								Throughput.sink = dispatcher.lookup(methodName,
+										paramClasses).invoke(parameters);
+							} catch (Throwable t) {
+								throw new Exception(t);
+							}
+						}
+					});
+		}
+	}
+
+}
@@ -0,0 +1,175 @@
+package java.wody.ipc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.wody.conf.Configuration;
+import java.wody.io.Writable;
+
+import javax.net.SocketFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link Client.CallTable} 的登记与移除、id 冲突时落到 overflow、
+ * closeIfEmpty 与 put 的竞争，以及 id 回绕
+ */
+public class TestCallTable {
+
+	private Client client;
+	private Client.CallTable table;
+
+	@Before
+	public void setUp() {
+		client = new Client(Writable.class, SocketFactory.getDefault(),
+				new Configuration());
+		table = new Client.CallTable();
+	}
+
+	@After
+	public void tearDown() {
+		client.stop();
+	}
+
+	private Client.Call call(int id) {
+		Client.Call call = client.new Call(null);
+		call.id = id;
+		return call;
+	}
+
+	@Test
+	public void testPutRemove() {
+		Client.Call a = call(1);
+		Client.Call b = call(2);
+		assertTrue(table.isEmpty());
+		assertTrue(table.put(a));
+		assertTrue(table.put(b));
+		assertEquals(2, table.size());
+
+		assertSame(a, table.remove(1));
+		assertNull(table.remove(1));
+		assertTrue(table.remove(b));
+		assertFalse(table.remove(b));
+		assertNull(table.remove(3));
+		assertTrue(table.isEmpty());
+	}
+
+	@Test
+	public void testOverflow() {
+		// 256 个 slot，id 相差 256 的 call 落在同一个 slot
+		Client.Call a = call(5);
+		Client.Call b = call(5 + 256);
+		Client.Call c = call(5 + 512);
+		assertTrue(table.put(a));
+		assertTrue(table.put(b));
+		assertTrue(table.put(c));
+		assertEquals(3, table.size());
+
+		// 按 id 移除 overflow 中的 call 时不会误取 slot 中的
+		assertSame(b, table.remove(5 + 256));
+		assertNull(table.remove(5 + 256));
+		// slot 空出之后新 call 可以再用它
+		assertSame(a, table.remove(5));
+		Client.Call d = call(5 + 768);
+		assertTrue(table.put(d));
+		assertTrue(table.remove(c));
+		assertFalse(table.remove(c));
+		assertSame(d, table.remove(5 + 768));
+		assertTrue(table.isEmpty());
+	}
+
+	@Test
+	public void testRemoveByCallChecksIdentity() {
+		Client.Call a = call(7);
+		Client.Call other = call(7);
+		assertTrue(table.put(a));
+		// 同一个 id 的另一个 call 不会把它移走
+		assertFalse(table.remove(other));
+		assertEquals(1, table.size());
+		assertTrue(table.remove(a));
+	}
+
+	@Test
+	public void testCloseIfEmpty() {
+		Client.Call a = call(1);
+		assertTrue(table.put(a));
+		assertFalse(table.closeIfEmpty());
+		assertTrue(table.remove(a));
+		assertTrue(table.closeIfEmpty());
+		assertFalse(table.put(call(2)));
+		assertTrue(table.isEmpty());
+		// 已经关闭的表不会再关闭一次
+		assertFalse(table.closeIfEmpty());
+	}
+
+	@Test
+	public void testCloseThenDrain() {
+		HashSet<Client.Call> calls = new HashSet<Client.Call>();
+		for (int id = 0; id < 600; id += 3) {
+			Client.Call call = call(id);
+			calls.add(call);
+			assertTrue(table.put(call));
+		}
+		table.close();
+		assertFalse(table.put(call(1)));
+		List<Client.Call> drained = table.drain();
+		assertEquals(calls.size(), drained.size());
+		assertEquals(calls, new HashSet<Client.Call>(drained));
+		assertTrue(table.isEmpty());
+	}
+
+	@Test(timeout = 60000)
+	public void testCloseIfEmptyRacesPut() throws Exception {
+		final CyclicBarrier barrier = new CyclicBarrier(2);
+		final boolean[] closed = new boolean[1];
+		for (int i = 0; i < 2000; i++) {
+			final Client.CallTable table = new Client.CallTable();
+			Thread closer = new Thread() {
+				@Override
+				public void run() {
+					try {
+						barrier.await();
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
+					closed[0] = table.closeIfEmpty();
+				}
+			};
+			closer.start();
+			barrier.await();
+			boolean added = table.put(call(i));
+			closer.join();
+
+			// 要么 put 在前、表不为空而不能关闭，要么关闭在前、put 被拒绝
+			assertTrue("put " + added + ", closed " + closed[0],
+					added != closed[0]);
+			assertEquals(added ? 1 : 0, table.size());
+		}
+	}
+
+	@Test
+	public void testIdWraparound() {
+		// nextCallId 在 Integer.MAX_VALUE 之后回到 0
+		int[] ids = { Integer.MAX_VALUE - 1, Integer.MAX_VALUE, 0, 1, 255 };
+		Client.Call[] calls = new Client.Call[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			calls[i] = call(ids[i]);
+			assertTrue(table.put(calls[i]));
+		}
+		assertEquals(ids.length, table.size());
+		// Integer.MAX_VALUE 与 255 落在同一个 slot
+		for (int i = ids.length - 1; i >= 0; i--) {
+			assertSame(calls[i], table.remove(ids[i]));
+		}
+		assertTrue(table.isEmpty());
+	}
+
+}
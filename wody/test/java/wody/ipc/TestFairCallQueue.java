@@ -0,0 +1,212 @@
+package java.wody.ipc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.wody.conf.Configuration;
+
+import org.junit.Test;
+
+/**
+ * {@link FairCallQueue} 的容量、同一级内的先后顺序、按调用量分级、
+ * 按权重在各级之间轮转，以及配置的校验。衰减周期设得足够长，不会在测试中发生
+ */
+public class TestFairCallQueue {
+
+	static class TestCall implements Schedulable {
+
+		final Object caller;
+		final int level; // 只用于固定了级别的队列
+
+		TestCall(Object caller) {
+			this(caller, 0);
+		}
+
+		TestCall(Object caller, int level) {
+			this.caller = caller;
+			this.level = level;
+		}
+
+		public Object getCallerIdentity() {
+			return caller;
+		}
+
+		@Override
+		public String toString() {
+			return caller + "@" + level;
+		}
+	}
+
+	private static Configuration conf() {
+		Configuration conf = new Configuration();
+		conf.setLong(FairCallQueue.DECAY_PERIOD_NAME, Long.MAX_VALUE / 2);
+		return conf;
+	}
+
+	/** A queue that puts each call on the level it names. */
+	private static FairCallQueue<TestCall> fixedLevels(int capacity,
+			Configuration conf) {
+		return new FairCallQueue<TestCall>(capacity, conf) {
+			@Override
+			int getPriorityLevel(Schedulable call) {
+				return ((TestCall) call).level;
+			}
+		};
+	}
+
+	@Test
+	public void testCapacity() throws InterruptedException {
+		FairCallQueue<TestCall> queue = new FairCallQueue<TestCall>(2, conf());
+		TestCall a = new TestCall("a");
+		assertTrue(queue.offer(a));
+		assertTrue(queue.offer(new TestCall("b")));
+		assertFalse(queue.offer(new TestCall("c")));
+		assertEquals(2, queue.size());
+
+		queue.take();
+		assertEquals(1, queue.size());
+		assertTrue(queue.offer(new TestCall("c")));
+		assertFalse(queue.offer(new TestCall("d")));
+	}
+
+	@Test(timeout = 10000)
+	public void testPutWaitsForRoom() throws InterruptedException {
+		final FairCallQueue<TestCall> queue = new FairCallQueue<TestCall>(1,
+				conf());
+		TestCall first = new TestCall("a");
+		final TestCall second = new TestCall("a");
+		queue.put(first);
+		Thread putter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					queue.put(second);
+				} catch (InterruptedException e) {
+					// the test fails on the take below
+				}
+			}
+		};
+		putter.start();
+		while (putter.getState() != Thread.State.WAITING) {
+			Thread.yield();
+		}
+		assertEquals(1, queue.size());
+
+		assertSame(first, queue.take());
+		putter.join();
+		assertSame(second, queue.take());
+	}
+
+	@Test
+	public void testFifoWithinLevel() throws InterruptedException {
+		FairCallQueue<TestCall> queue = new FairCallQueue<TestCall>(16, conf());
+		TestCall[] calls = new TestCall[10];
+		for (int i = 0; i < calls.length; i++) {
+			calls[i] = new TestCall("a");
+			queue.put(calls[i]);
+		}
+		for (TestCall call : calls) {
+			assertSame(call, queue.take());
+		}
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testLevelFollowsShareOfCalls() {
+		FairCallQueue<TestCall> queue = new FairCallQueue<TestCall>(16, conf());
+		// 默认 4 级，调用量占比达到 1/8、1/4、1/2 时分别降到 1、2、3 级
+		assertEquals(3, queue.getPriorityLevel(new TestCall("heavy")));
+		for (int i = 0; i < 8; i++) {
+			queue.getPriorityLevel(new TestCall("heavy"));
+		}
+		// 1/10, 2/11, 3/12
+		assertEquals(0, queue.getPriorityLevel(new TestCall("light")));
+		assertEquals(1, queue.getPriorityLevel(new TestCall("light")));
+		assertEquals(2, queue.getPriorityLevel(new TestCall("light")));
+		assertEquals(3, queue.getPriorityLevel(new TestCall("heavy")));
+		// identity 相等就是同一个调用者
+		assertEquals(2, queue.getPriorityLevel(new TestCall(new String("light"))));
+	}
+
+	@Test
+	public void testLightCallerGoesFirst() throws InterruptedException {
+		FairCallQueue<TestCall> queue = new FairCallQueue<TestCall>(16, conf());
+		TestCall[] heavy = new TestCall[4];
+		for (int i = 0; i < heavy.length; i++) {
+			heavy[i] = new TestCall("heavy");
+			queue.put(heavy[i]);
+		}
+		// 1/5 的占比在第 1 级，排在第 3 级的 heavy 前面
+		TestCall light = new TestCall("light");
+		queue.put(light);
+
+		assertSame(light, queue.take());
+		for (TestCall call : heavy) {
+			assertSame(call, queue.take());
+		}
+	}
+
+	@Test
+	public void testWeightedSchedule() throws InterruptedException {
+		Configuration conf = conf();
+		conf.setInt(FairCallQueue.LEVELS_NAME, 3);
+		conf.set(FairCallQueue.WEIGHTS_NAME, "3, 2, 1");
+		FairCallQueue<TestCall> queue = fixedLevels(64, conf);
+		for (int level = 0; level < 3; level++) {
+			for (int i = 0; i < 6; i++) {
+				queue.put(new TestCall("c" + level, level));
+			}
+		}
+
+		// 3,2,1 交错成 0,1,2,0,1,0，每 6 次 take 中各级分别得到 3、2、1 次
+		int[] expected = { 0, 1, 2, 0, 1, 0, 0, 1, 2, 0, 1, 0 };
+		for (int level : expected) {
+			assertEquals(level, queue.take().level);
+		}
+		// 第 0 级取空之后，轮到它时取下一级
+		assertEquals(1, queue.take().level);
+		assertEquals(1, queue.take().level);
+		assertEquals(2, queue.take().level);
+		assertEquals(2, queue.take().level);
+		assertEquals(2, queue.take().level);
+		assertEquals(2, queue.take().level);
+		assertEquals(0, queue.size());
+	}
+
+	@Test
+	public void testLevelsOutOfRange() {
+		for (int levels : new int[] { 0, -1, 17 }) {
+			Configuration conf = conf();
+			conf.setInt(FairCallQueue.LEVELS_NAME, levels);
+			try {
+				new FairCallQueue<TestCall>(16, conf);
+				fail("Accepted " + levels + " levels");
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+		Configuration conf = conf();
+		conf.setInt(FairCallQueue.LEVELS_NAME, 16);
+		FairCallQueue<TestCall> queue = new FairCallQueue<TestCall>(16, conf);
+		assertEquals(15, queue.getPriorityLevel(new TestCall("a")));
+	}
+
+	@Test
+	public void testBadWeights() {
+		for (String weights : new String[] { "8,4,2", "8,4,2,1,1", "8,4,0,1",
+				"8,4,-2,1" }) {
+			Configuration conf = conf();
+			conf.set(FairCallQueue.WEIGHTS_NAME, weights);
+			try {
+				new FairCallQueue<TestCall>(16, conf);
+				fail("Accepted weights " + weights);
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package java.wody.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link HashedWheelTimer} 的任务在延迟之后执行、按到期顺序执行、取消，
+ * 以及 stop 之后的行为。是否执行过由之后到期的任务确认，不依赖 sleep
+ */
+public class TestHashedWheelTimer {
+
+	private static final long TICK = 10;
+
+	private HashedWheelTimer timer;
+
+	@Before
+	public void setUp() {
+		// 8 个槽，80ms 以上的延迟要在轮上转不止一圈
+		timer = new HashedWheelTimer("test timer", TICK, TimeUnit.MILLISECONDS, 8);
+	}
+
+	@After
+	public void tearDown() {
+		timer.stop();
+	}
+
+	private static Runnable countDown(final CountDownLatch latch) {
+		return new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+	}
+
+	@Test(timeout = 10000)
+	public void testRunsAfterDelay() throws InterruptedException {
+		for (long delay : new long[] { 0, 30, 200 }) {
+			CountDownLatch ran = new CountDownLatch(1);
+			long start = System.nanoTime();
+			timer.newTimeout(countDown(ran), delay, TimeUnit.MILLISECONDS);
+			assertTrue(ran.await(5, TimeUnit.SECONDS));
+			long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+					- start);
+			assertTrue(delay + "ms task ran after " + elapsed + "ms",
+					elapsed >= delay);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRunsInDeadlineOrder() throws InterruptedException {
+		final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+		final CountDownLatch done = new CountDownLatch(4);
+		// 相隔至少两个 tick，不会落在同一个 tick 中
+		for (final long delay : new long[] { 150, 30, 300, 90 }) {
+			timer.newTimeout(new Runnable() {
+				public void run() {
+					order.add(delay);
+					done.countDown();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(30L, 90L, 150L, 300L), order);
+	}
+
+	@Test(timeout = 10000)
+	public void testCancel() throws InterruptedException {
+		final AtomicBoolean ran = new AtomicBoolean();
+		HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+			public void run() {
+				ran.set(true);
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+
+		// 一个更晚到期的任务执行时，被取消的任务本该早已执行
+		CountDownLatch later = new CountDownLatch(1);
+		timer.newTimeout(countDown(later), 150, TimeUnit.MILLISECONDS);
+		assertTrue(later.await(5, TimeUnit.SECONDS));
+		assertFalse(ran.get());
+	}
+
+	@Test(timeout = 10000)
+	public void testCancelAfterRun() throws InterruptedException {
+		CountDownLatch ran = new CountDownLatch(1);
+		HashedWheelTimer.Timeout timeout = timer.newTimeout(countDown(ran), 20,
+				TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+		assertFalse(timeout.cancel());
+	}
+
+	@Test(timeout = 10000)
+	public void testFailingTaskKeepsWorker() throws InterruptedException {
+		timer.newTimeout(new Runnable() {
+			public void run() {
+				throw new RuntimeException("expected by the test");
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+		CountDownLatch ran = new CountDownLatch(1);
+		timer.newTimeout(countDown(ran), 50, TimeUnit.MILLISECONDS);
+		assertTrue(ran.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testNewTimeoutAfterStop() {
+		timer.newTimeout(countDown(new CountDownLatch(1)), 1,
+				TimeUnit.HOURS);
+		timer.stop();
+		try {
+			timer.newTimeout(countDown(new CountDownLatch(1)), 1,
+					TimeUnit.MILLISECONDS);
+			fail("Scheduled a task on a stopped timer");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStopBeforeStart() {
+		timer.stop();
+		try {
+			timer.newTimeout(countDown(new CountDownLatch(1)), 1,
+					TimeUnit.MILLISECONDS);
+			fail("Scheduled a task on a stopped timer");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRejectsNonPositiveTick() {
+		new HashedWheelTimer("bad timer", 0, TimeUnit.MILLISECONDS, 8);
+	}
+
+}
@@ -0,0 +1,87 @@
+package java.wody.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 供各个 *Benchmark 的 main 使用：在若干线程上反复执行同一个操作一段时间，
+ * 给出每秒完成的操作数
+ */
+public class Throughput {
+
+	/** One operation of a benchmark. */
+	public interface Op {
+
+		/**
+		 * @param thread index of the calling thread, from 0
+		 */
+		void run(int thread) throws Exception;
+	}
+
+	// 让结果看起来被使用了，以免 JIT 把操作整个消除
+	public static volatile Object sink;
+
+	private Throughput() {
+	}
+
+	/**
+	 * Runs <code>op</code> on <code>threads</code> threads for
+	 * <code>millis</code> milliseconds.
+	 *
+	 * @return operations per second over all threads
+	 */
+	public static double measure(final int threads, long millis, final Op op)
+			throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicLong total = new AtomicLong();
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int index = i;
+			workers[i] = new Thread("benchmark #" + i) {
+				@Override
+				public void run() {
+					long ops = 0;
+					try {
+						start.await();
+						while (!stop.get()) {
+							// 每 64 次操作检查一次是否该停止
+							for (int k = 0; k < 64; k++) {
+								op.run(index);
+							}
+							ops += 64;
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+					} finally {
+						total.addAndGet(ops);
+						done.countDown();
+					}
+				}
+			};
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		Thread.sleep(millis);
+		stop.set(true);
+		done.await();
+		long elapsed = System.nanoTime() - begin;
+		return total.get() * 1e9 / elapsed;
+	}
+
+	/** Runs a warm-up round, then the measured one, and prints the result. */
+	public static double report(String name, int threads, long millis, Op op)
+			throws InterruptedException {
+		measure(threads, millis / 2, op);
+		double ops = measure(threads, millis, op);
+		System.out.println(String.format("%-40s %3d threads %,15.0f ops/s",
+				name, threads, ops));
+		return ops;
+	}
+
+}